@@ -0,0 +1,67 @@
+package chatroom.server;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+// A server whose clients have no socket, so the benchmarks measure the server's own work (encoding, queueing,
+// history, search) and nothing goes over the network. Lives in chatroom.server to reach its protected members
+final class BenchmarkServer {
+    private BenchmarkServer() {
+    }
+
+    // Starts a server on an ephemeral port, no client ever connects to it. The server logs every join and leave
+    // to standard output, which would cost more than what is measured, so that output is discarded.
+    // The benchmarks send far faster than any client is allowed to, so rate limits are off
+    static Server start(ServerConfig config) {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        config.messagesPerSecond = 0;
+        config.commandsPerSecond = 0;
+
+        Server server = new Server(0, config);
+        server.run();
+        return server;
+    }
+
+    // Connects a socketless client and lets it join the default room, which replays the history to it. Option
+    // lines (e.g. "/compress") are sent before the name
+    static ClientConnection connect(Server server, String name, String... options) {
+        ClientConnection c = new ClientConnection(server);
+        c.open();
+        for (String option : options) {
+            c.handleLine(option);
+        }
+        c.handleLine(name);
+        return c;
+    }
+
+    // Random lowercase words, the same ones for the same seed
+    static String[] vocabulary(int size, long seed) {
+        Random random = new Random(seed);
+        String[] words = new String[size];
+
+        for (int i = 0; i < size; i++) {
+            StringBuilder word = new StringBuilder();
+            int length = 3 + random.nextInt(6);
+            for (int j = 0; j < length; j++) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = word.toString();
+        }
+        return words;
+    }
+
+    // Sends count messages of a few random words from the client
+    static void fillHistory(ClientConnection sender, String[] vocabulary, int count, long seed) {
+        Random random = new Random(seed);
+
+        for (int i = 0; i < count; i++) {
+            StringBuilder line = new StringBuilder();
+            int words = 4 + random.nextInt(8);
+            for (int j = 0; j < words; j++) {
+                line.append(vocabulary[random.nextInt(vocabulary.length)]).append(' ');
+            }
+            sender.handleLine(line.toString());
+        }
+    }
+}
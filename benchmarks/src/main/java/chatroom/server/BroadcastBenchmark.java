@@ -0,0 +1,40 @@
+package chatroom.server;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// One public message from a member of a room of roomSize clients: history append, encoding and queueing it
+// to every member
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"10", "100", "1000"})
+    public int roomSize;
+
+    private Server server;
+    private ClientConnection sender;
+
+    @Setup
+    public void setUp() {
+        this.server = BenchmarkServer.start(new ServerConfig());
+        this.sender = BenchmarkServer.connect(this.server, "sender");
+
+        for (int i = 1; i < this.roomSize; i++) {
+            BenchmarkServer.connect(this.server, "member" + i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.server.shutdown();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        this.sender.handleLine("The quick brown fox jumps over the lazy dog");
+    }
+}
@@ -0,0 +1,62 @@
+package chatroom.server;
+
+import chatroom.objects.Message;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// A client joining a room with historyLength messages, which replays the last historyOnJoin of them,
+// and leaving again so the room keeps its size. Also the same with compression (the first join compresses the
+// shared history blocks, later ones reuse them), and a reconnecting client resuming after missing the last
+// RESUME_MISSED messages, which replays only those
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryReplayBenchmark {
+    private static final int RESUME_MISSED = 20;
+
+    @Param({"100", "10000"})
+    public int historyLength;
+
+    @Param({"50", "500"})
+    public int historyOnJoin;
+
+    private Server server;
+    private long lastSeenId;
+
+    @Setup
+    public void setUp() {
+        ServerConfig config = new ServerConfig();
+        config.historyOnJoin = this.historyOnJoin;
+
+        this.server = BenchmarkServer.start(config);
+        ClientConnection sender = BenchmarkServer.connect(this.server, "sender");
+        BenchmarkServer.fillHistory(sender, BenchmarkServer.vocabulary(2000, 1), this.historyLength, 2);
+
+        List<Message> history = this.server.lobby.history.since(0);
+        this.lastSeenId = history.get(Math.max(0, history.size() - RESUME_MISSED - 1)).id;
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.server.shutdown();
+    }
+
+    @Benchmark
+    public void joinAndLeave() {
+        BenchmarkServer.connect(this.server, "reader").disconnect();
+    }
+
+    @Benchmark
+    public void joinCompressedAndLeave() {
+        BenchmarkServer.connect(this.server, "reader", "/compress").disconnect();
+    }
+
+    @Benchmark
+    public void resumeAndLeave() {
+        BenchmarkServer.connect(this.server, "/resume " + this.lastSeenId + " reader").disconnect();
+    }
+}
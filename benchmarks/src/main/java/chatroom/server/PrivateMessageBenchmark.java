@@ -0,0 +1,45 @@
+package chatroom.server;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// /msg from one client to the others of a server of users clients in turn: parsing, receiver lookup,
+// storing the message in its conversation and queueing it to both sides
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrivateMessageBenchmark {
+    @Param({"10", "1000"})
+    public int users;
+
+    private Server server;
+    private ClientConnection sender;
+    private String[] commands;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        this.server = BenchmarkServer.start(new ServerConfig());
+        this.sender = BenchmarkServer.connect(this.server, "sender");
+
+        this.commands = new String[this.users - 1];
+        for (int i = 1; i < this.users; i++) {
+            ClientConnection receiver = BenchmarkServer.connect(this.server, "receiver" + i);
+            this.commands[i - 1] = "/msg " + receiver.name + "#" + receiver.id + " are you there?";
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.server.shutdown();
+    }
+
+    @Benchmark
+    public void sendPrivateMessage() {
+        this.sender.handleLine(this.commands[this.next]);
+        this.next = (this.next + 1) % this.commands.length;
+    }
+}
@@ -0,0 +1,58 @@
+package chatroom.server;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// /search over a history of historyLength messages, with queryTerms word prefixes that must all match
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark {
+    private static final int QUERIES = 256;
+
+    @Param({"1000", "10000"})
+    public int historyLength;
+
+    @Param({"1", "2"})
+    public int queryTerms;
+
+    private Server server;
+    private ClientConnection searcher;
+    private String[] queries;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        this.server = BenchmarkServer.start(new ServerConfig());
+        this.searcher = BenchmarkServer.connect(this.server, "searcher");
+
+        // The searcher sends the history itself, so all of it counts as seen by it
+        String[] vocabulary = BenchmarkServer.vocabulary(2000, 1);
+        BenchmarkServer.fillHistory(this.searcher, vocabulary, this.historyLength, 2);
+
+        // Prefixes of words that do occur, as users would type them
+        Random random = new Random(3);
+        this.queries = new String[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            StringBuilder query = new StringBuilder("/search");
+            for (int j = 0; j < this.queryTerms; j++) {
+                query.append(' ').append(vocabulary[random.nextInt(vocabulary.length)], 0, 3);
+            }
+            this.queries[i] = query.toString();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.server.shutdown();
+    }
+
+    @Benchmark
+    public void search() {
+        this.searcher.handleLine(this.queries[this.next++ & (QUERIES - 1)]);
+    }
+}
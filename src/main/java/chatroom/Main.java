@@ -22,8 +22,9 @@ public class Main {
                 Server server = new Server(port);
                 server.run();
 
-                // Checks if the server was successfully ran or not
+                // Checks if the server was successfully ran or not, if so keep running until it shuts down
                 if (server.success()) {
+                    server.awaitShutdown();
                     break;
                 }
                 System.out.println("Server failed to connect. Please try again.");
@@ -1,17 +1,19 @@
 package chatroom.client;
 
 import chatroom.Main;
+import chatroom.protocol.InflatingInputStream;
 import java.io.*;
 import java.net.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 // Represents each Client instance (command-line interface)
 public class Client implements Runnable {
     private Socket clientSocket;
     private BufferedReader in;
     private PrintWriter out;
-    private ExecutorService threadPool;
+    private volatile long lastSentAt; // System.nanoTime of the last line sent, 0 until the name was sent
 
     public Client(int port) {
         try {
@@ -29,13 +31,19 @@ public class Client implements Runnable {
             return;
         }
 
-        // Initialize important variables
-        this.threadPool = Executors.newCachedThreadPool();
-
-        // IO streams
+        // IO streams. Unless -Dchatroom.client.compress=false, asks for compressed history and long responses before
+        // sending the name, and expands them as they arrive
         try {
-            this.in = new BufferedReader(new InputStreamReader(this.clientSocket.getInputStream()));
-            this.out = new PrintWriter(new OutputStreamWriter(this.clientSocket.getOutputStream()), true); // Auto flush, so no need to call flush()
+            boolean compress = Boolean.parseBoolean(System.getProperty("chatroom.client.compress", "true"));
+            InputStream input = this.clientSocket.getInputStream();
+
+            this.in = new BufferedReader(new InputStreamReader(compress ? new InflatingInputStream(input) : input, StandardCharsets.UTF_8));
+            this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(this.clientSocket.getOutputStream(), StandardCharsets.UTF_8))); // Flushed once the input is idle
+
+            if (compress) {
+                this.out.println("/compress");
+                this.out.flush();
+            }
         } catch (IOException e) {
             System.err.println("Failed to establish IO stream.");
             this.close();
@@ -43,6 +51,7 @@ public class Client implements Runnable {
 
         // Starts listening from server in a different thread and output accordingly to the client
         this.listenForServerMessage();
+        this.startHeartbeat();
 
         // Starts handling input from the client in the main thread
         this.startInputHandler();
@@ -53,15 +62,25 @@ public class Client implements Runnable {
         return (this.clientSocket != null);
     }
 
-    // Listens for server message being sent by ClientConnection
+    // Listens for server message being sent by ClientConnection, on a virtual thread with -Dchatroom.engine=virtual.
+    // Lines that arrived together are printed together, the console is only flushed once no more are waiting
     private void listenForServerMessage() {
-        this.threadPool.execute(() -> {
+        boolean virtual = "virtual".equalsIgnoreCase(System.getProperty("chatroom.engine"));
+        Thread.Builder builder = (virtual ? Thread.ofVirtual() : Thread.ofPlatform());
+
+        builder.name("chatroom-client-reader").start(() -> {
             String messageFromServer;
+            PrintWriter console = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024));
 
             try {
                 while ((messageFromServer = this.in.readLine()) != null) {
-                    System.out.println(messageFromServer);
+                    console.println(messageFromServer);
+                    if (!this.in.ready()) {
+                        console.flush();
+                    }
                 }
+                console.flush();
+                this.close(); // The server closed the connection
             } catch (IOException e) {
                 System.err.println("Failed to read message from server.");
                 this.close();
@@ -69,14 +88,27 @@ public class Client implements Runnable {
         });
     }
 
-    // Handles input from client and send it to server
+    // Handles input from client and send it to server. Lines typed or pasted together are sent in one write,
+    // the socket is flushed as soon as no more input is waiting
     private void startInputHandler() {
         BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
 
         while (!this.clientSocket.isClosed()) {
             try {
                 String message = reader.readLine();
+
+                // End of input (e.g. piped commands): stop sending, the answers are read until the server closes
+                if (message == null) {
+                    this.out.flush();
+                    this.clientSocket.shutdownOutput();
+                    return;
+                }
+
                 this.out.println(message);
+                this.lastSentAt = System.nanoTime();
+                if (!reader.ready()) {
+                    this.out.flush();
+                }
             } catch (IOException e) {
                 System.err.println("Failed to read input.");
                 this.close();
@@ -84,12 +116,35 @@ public class Client implements Runnable {
         }
     }
 
+    // Sends /ping whenever nothing was sent for chatroom.client.heartbeat-seconds (60, 0 never does), so servers
+    // disconnecting idle clients keep this one connected. Starts once the name was sent
+    private void startHeartbeat() {
+        long periodNanos = TimeUnit.SECONDS.toNanos(Integer.getInteger("chatroom.client.heartbeat-seconds", 60));
+        if (periodNanos <= 0) {
+            return;
+        }
+
+        Thread.ofVirtual().name("chatroom-client-heartbeat").start(() -> {
+            while (!this.clientSocket.isClosed()) {
+                long lastSentAt = this.lastSentAt;
+                long now = System.nanoTime();
+
+                if (lastSentAt != 0 && now - lastSentAt >= periodNanos) {
+                    this.out.println("/ping");
+                    this.out.flush();
+                    this.lastSentAt = now;
+                    lastSentAt = now;
+                }
+                LockSupport.parkNanos(lastSentAt == 0 ? periodNanos : lastSentAt + periodNanos - now);
+            }
+        });
+    }
+
     // Closes the client
     private void close() {
         try {
             if (this.clientSocket != null && !this.clientSocket.isClosed()) {
                 this.clientSocket.close();
-                this.threadPool.shutdown();
                 this.in.close();
                 this.out.close();
                 System.out.println("Client closed.");
@@ -0,0 +1,543 @@
+package chatroom.client;
+
+import chatroom.objects.LatencyHistogram;
+import chatroom.protocol.BinaryProtocol;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless load test client: opens many connections to a server, joins them with the binary protocol, then sends
+// a mix of public messages, private messages and searches at a fixed total rate and measures how long they take to
+// arrive. Started as java -Dchatroom.load.connections=2000 -cp out chatroom.client.LoadGenerator <port>, options:
+//   chatroom.load.host                 server host (localhost)
+//   chatroom.load.connections          connections to open (1000)
+//   chatroom.load.connect-concurrency  handshakes in flight at once while connecting (100)
+//   chatroom.load.rooms                rooms the connections are spread over, 1 keeps everyone in the lobby (1)
+//   chatroom.load.rate                 operations per second over all connections (1000)
+//   chatroom.load.mix                  public:private:search weights of the operations (90:8:2)
+//   chatroom.load.message-bytes        padding added to every message (64)
+//   chatroom.load.duration-seconds     how long to send for (30)
+//   chatroom.load.mode                 messages, or churn to connect, join and disconnect over and over (messages)
+//   chatroom.load.cycles               connect/disconnect cycles of a churn run, connect-concurrency at a time (100000)
+//
+// Every message carries the time it was meant to be sent, so a sender falling behind its schedule shows up in the
+// latencies instead of hiding it (coordinated omission). Only this run's messages are measured, not replayed history.
+// A churn run prints the server's open connections, threads and file descriptors (from /stats) before and after,
+// which should be back where they started
+public class LoadGenerator {
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final String host;
+    private final int port;
+    private final int connectionCount;
+    private final int connectConcurrency;
+    private final int rooms;
+    private final int rate;
+    private final int[] mix; // Cumulative weights of public, private and search
+    private final String padding;
+    private final int durationSeconds;
+    private final boolean churn;
+    private final int cycles;
+    private final String runTag = "lg" + Long.toHexString(ThreadLocalRandom.current().nextLong() & 0xFFFFFFFFL);
+
+    private final List<LoadConnection> connections = new CopyOnWriteArrayList<>();
+    private volatile boolean running = true;
+
+    // Results
+    private final LatencyHistogram handshakeLatency = new LatencyHistogram();
+    private final LatencyHistogram publicLatency = new LatencyHistogram();
+    private final LatencyHistogram privateLatency = new LatencyHistogram();
+    private final LatencyHistogram searchLatency = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong connectErrors = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+
+    public LoadGenerator(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.connectionCount = Math.max(1, intProperty("chatroom.load.connections", 1000));
+        this.connectConcurrency = Math.max(1, intProperty("chatroom.load.connect-concurrency", 100));
+        this.rooms = Math.max(1, intProperty("chatroom.load.rooms", 1));
+        this.rate = Math.max(1, intProperty("chatroom.load.rate", 1000));
+        this.mix = parseMix(System.getProperty("chatroom.load.mix", "90:8:2"));
+        this.padding = "x".repeat(Math.max(0, intProperty("chatroom.load.message-bytes", 64)));
+        this.durationSeconds = Math.max(1, intProperty("chatroom.load.duration-seconds", 30));
+        this.churn = "churn".equalsIgnoreCase(System.getProperty("chatroom.load.mode", "messages").trim());
+        this.cycles = Math.max(1, intProperty("chatroom.load.cycles", 100000));
+    }
+
+    // Connects everything, sends for the configured duration, then prints the results
+    public void run() {
+        if (this.churn) {
+            this.runChurn();
+            return;
+        }
+
+        this.connectAll();
+        if (this.connections.isEmpty()) {
+            System.err.println("No connection could be established to " + this.host + ":" + this.port + ".");
+            return;
+        }
+
+        // Let the join notices and history replays settle before measuring
+        LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+
+        System.out.println("Sending " + this.rate + " operations/s over " + this.connections.size() + " connections for "
+                + this.durationSeconds + "s (mix " + mixDescription(this.mix) + ").");
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(this.durationSeconds);
+        List<Thread> senders = new ArrayList<>();
+
+        // Each connection sends on its own schedule, offset so the total rate is spread evenly
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) * this.connections.size() / this.rate;
+        for (int i = 0; i < this.connections.size(); i++) {
+            LoadConnection connection = this.connections.get(i);
+            long first = start + intervalNanos * i / this.connections.size();
+            senders.add(Thread.ofVirtual().name("chatroom-load-sender-" + i).start(() -> connection.sendUntil(first, intervalNanos, end)));
+        }
+
+        this.reportUntil(start, end);
+
+        for (Thread sender : senders) {
+            try {
+                sender.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        // Give the last messages time to arrive
+        LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+        this.running = false;
+        this.printResults(System.nanoTime() - start);
+
+        for (LoadConnection connection : this.connections) {
+            connection.close();
+        }
+    }
+
+    // Connects, joins and disconnects cycles times, connect-concurrency at a time, then compares the server's
+    // resources with what they were before
+    private void runChurn() {
+        String before = this.serverResources();
+        if (before == null) {
+            return;
+        }
+        System.out.println("Before: " + before);
+        System.out.println("Running " + this.cycles + " connect/disconnect cycles, " + this.connectConcurrency + " at a time...");
+
+        long start = System.nanoTime();
+        AtomicLong done = new AtomicLong();
+        Semaphore inFlight = new Semaphore(this.connectConcurrency);
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < this.cycles; i++) {
+                int index = i;
+                inFlight.acquireUninterruptibly();
+
+                executor.execute(() -> {
+                    LoadConnection connection = new LoadConnection(index);
+                    try {
+                        connection.handshake();
+                    } catch (IOException e) {
+                        this.connectErrors.incrementAndGet();
+                    } finally {
+                        connection.close();
+                        inFlight.release();
+                    }
+
+                    long cycles = done.incrementAndGet();
+                    if (cycles % Math.max(1, this.cycles / 10) == 0) {
+                        System.out.println(String.format("[%3ds] %d cycles, %d failed", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+                                cycles, this.connectErrors.get()));
+                    }
+                });
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        // The server closes its side of the last connections asynchronously
+        LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(2));
+
+        System.out.println("Results after " + String.format("%.1f", seconds) + "s:");
+        System.out.println("  Cycles:        " + this.cycles + " (" + String.format("%.0f/s", this.cycles / seconds) + "), " + this.connectErrors.get() + " failed");
+        System.out.println("  Handshake:     " + this.handshakeLatency.summary());
+        System.out.println("  Before:        " + before);
+        System.out.println("  After:         " + this.serverResources());
+    }
+
+    // The resources line of the server's /stats, null if it cannot be read
+    private String serverResources() {
+        LoadConnection connection = new LoadConnection(-1);
+
+        try {
+            connection.handshake();
+            String stats = connection.command("/stats", "Server statistics", "Statistics are only");
+            if (!stats.startsWith("Server statistics")) {
+                System.err.println(stats + " Start the server with -Dchatroom.stats.remote=true to compare its resources.");
+                return null;
+            }
+
+            for (String line : stats.split("\n")) {
+                if (line.startsWith("- Resources: ")) {
+                    return line.substring("- Resources: ".length());
+                }
+            }
+            return "unknown";
+        } catch (IOException e) {
+            System.err.println("Failed to read the statistics of " + this.host + ":" + this.port + ".");
+            return null;
+        } finally {
+            connection.close();
+        }
+    }
+
+    // Opens the connections on virtual threads, a bounded number of handshakes at a time
+    private void connectAll() {
+        System.out.println("Opening " + this.connectionCount + " connections to " + this.host + ":" + this.port + "...");
+
+        Semaphore inFlight = new Semaphore(this.connectConcurrency);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < this.connectionCount; i++) {
+                int index = i;
+                inFlight.acquireUninterruptibly();
+
+                executor.execute(() -> {
+                    try {
+                        LoadConnection connection = new LoadConnection(index);
+                        connection.open();
+                        this.connections.add(connection);
+                    } catch (IOException e) {
+                        this.connectErrors.incrementAndGet();
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        }
+
+        System.out.println("Connected " + this.connections.size() + ", failed " + this.connectErrors.get() + ", handshake " + this.handshakeLatency.summary());
+    }
+
+    // Prints the progress every few seconds until the end of the run
+    private void reportUntil(long start, long end) {
+        long lastSent = 0, lastReceived = 0, last = start;
+
+        while (System.nanoTime() < end) {
+            LockSupport.parkNanos(Math.min(REPORT_INTERVAL_NANOS, Math.max(1, end - System.nanoTime())));
+
+            long now = System.nanoTime();
+            double seconds = (now - last) / 1e9;
+            long sentNow = this.sent.get(), receivedNow = this.received.get();
+
+            System.out.println(String.format("[%3ds] sent %.0f/s, received %.0f/s, disconnects %d, public p99 %s",
+                    TimeUnit.NANOSECONDS.toSeconds(now - start), (sentNow - lastSent) / seconds, (receivedNow - lastReceived) / seconds,
+                    this.disconnects.get(), LatencyHistogram.format(this.publicLatency.percentile(99))));
+
+            lastSent = sentNow;
+            lastReceived = receivedNow;
+            last = now;
+        }
+    }
+
+    private void printResults(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+
+        System.out.println("Results after " + String.format("%.1f", seconds) + "s:");
+        System.out.println("  Connections:   " + this.connections.size() + " open, " + this.connectErrors.get() + " failed to connect, "
+                + this.disconnects.get() + " disconnected");
+        System.out.println("  Throughput:    " + String.format("%.0f sent/s, %.0f received/s, %.1f MB/s received",
+                this.sent.get() / seconds, this.received.get() / seconds, this.bytesReceived.get() / seconds / (1024 * 1024)));
+        System.out.println("  Handshake:     " + this.handshakeLatency.summary());
+        System.out.println("  Public:        " + this.publicLatency.summary());
+        System.out.println("  Private:       " + this.privateLatency.summary());
+        System.out.println("  Search:        " + this.searchLatency.summary());
+    }
+
+    // One simulated user: a binary protocol connection read by its own virtual thread
+    private class LoadConnection {
+        private final int index;
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+        private int clientId;
+        private volatile long searchSentAt = -1; // Intended send time of the unanswered /search, at most one at a time
+
+        private LoadConnection(int index) {
+            this.index = index;
+        }
+
+        // Connects and completes the name handshake, then reads everything it receives on its own virtual thread
+        private void open() throws IOException {
+            this.handshake();
+            Thread.ofVirtual().name("chatroom-load-reader-" + this.index).start(this::read);
+        }
+
+        // Connects and completes the name handshake, joining its room if the connections are spread over several
+        private void handshake() throws IOException {
+            long start = System.nanoTime();
+
+            this.socket = new Socket(LoadGenerator.this.host, LoadGenerator.this.port);
+            this.socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+
+            try {
+                // Read the text name prompt, then switch to frames
+                int b;
+                while ((b = this.in.read()) != '\n') {
+                    if (b < 0) {
+                        throw new EOFException("Server closed the connection.");
+                    }
+                }
+
+                this.out.write(BinaryProtocol.MAGIC);
+                this.write(BinaryProtocol.textFrame(BinaryProtocol.HELLO, "load" + this.index));
+
+                // Notices (e.g. the history) may come before the welcome
+                ByteBuffer frame;
+                while ((frame = BinaryProtocol.readFrame(this.in)) != null && frame.get() != BinaryProtocol.WELCOME) {
+                }
+                if (frame == null) {
+                    throw new EOFException("Server closed the connection.");
+                }
+                this.clientId = frame.getInt();
+
+                if (LoadGenerator.this.rooms > 1) {
+                    this.write(BinaryProtocol.textFrame(BinaryProtocol.COMMAND, "/join load-" + this.index % LoadGenerator.this.rooms));
+                }
+            } catch (IOException e) {
+                this.socket.close();
+                throw e;
+            }
+
+            LoadGenerator.this.handshakeLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+
+        // Sends a command and returns the first notice starting with one of the expected texts (without a reader thread)
+        private String command(String command, String... expected) throws IOException {
+            this.write(BinaryProtocol.textFrame(BinaryProtocol.COMMAND, command));
+
+            ByteBuffer frame;
+            while ((frame = BinaryProtocol.readFrame(this.in)) != null) {
+                if (frame.get() == BinaryProtocol.NOTICE) {
+                    String notice = BinaryProtocol.readRemaining(frame);
+                    for (String start : expected) {
+                        if (notice.startsWith(start)) {
+                            return notice;
+                        }
+                    }
+                }
+            }
+            throw new EOFException("Server closed the connection.");
+        }
+
+        // Sends one operation per interval from first until end, the time each was due is what gets measured
+        private void sendUntil(long first, long intervalNanos, long end) {
+            for (long due = first; due < end && !this.socket.isClosed(); due += intervalNanos) {
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+
+                try {
+                    if (this.sendOne(due)) {
+                        LoadGenerator.this.sent.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    this.lost();
+                    return;
+                }
+            }
+        }
+
+        // Sends the operation picked by the mix, returns false if it had to be skipped: a private message with no one
+        // else to send it to, or a search while the previous one is still unanswered
+        private boolean sendOne(long due) throws IOException {
+            int pick = ThreadLocalRandom.current().nextInt(LoadGenerator.this.mix[2]);
+            String content = LoadGenerator.this.runTag + " " + due + " " + LoadGenerator.this.padding;
+
+            if (pick < LoadGenerator.this.mix[0]) {
+                this.write(BinaryProtocol.textFrame(BinaryProtocol.CHAT, content));
+            }
+            else if (pick < LoadGenerator.this.mix[1]) {
+                List<LoadConnection> all = LoadGenerator.this.connections;
+                if (all.size() < 2) {
+                    return false; // The server rejects private messages to oneself
+                }
+
+                LoadConnection receiver = all.get(ThreadLocalRandom.current().nextInt(all.size()));
+                if (receiver == this) {
+                    receiver = all.get((all.indexOf(this) + 1) % all.size());
+                }
+                this.write(BinaryProtocol.privateRequestFrame(receiver.clientId, content));
+            }
+            else if (this.searchSentAt < 0) {
+                this.searchSentAt = due;
+                this.write(BinaryProtocol.textFrame(BinaryProtocol.COMMAND, "/search " + LoadGenerator.this.runTag));
+            }
+            else {
+                return false;
+            }
+            return true;
+        }
+
+        private void write(byte[] frame) throws IOException {
+            this.out.write(frame);
+            this.out.flush();
+        }
+
+        // Reads frames until the connection closes, recording the latency of this run's messages
+        private void read() {
+            try {
+                ByteBuffer frame;
+                while ((frame = BinaryProtocol.readFrame(this.in)) != null) {
+                    LoadGenerator.this.bytesReceived.addAndGet(4 + frame.remaining());
+                    long now = System.nanoTime();
+
+                    switch (frame.get()) {
+                        case BinaryProtocol.CHAT -> {
+                            frame.position(frame.position() + 8 + 8);
+                            int senderId = frame.getInt();
+                            BinaryProtocol.readString(frame);
+                            this.recordDelivery(LoadGenerator.this.publicLatency, senderId != this.clientId, BinaryProtocol.readRemaining(frame), now);
+                        }
+                        case BinaryProtocol.PRIVATE -> {
+                            frame.position(frame.position() + 8 + 8 + 4);
+                            int receiverId = frame.getInt();
+                            BinaryProtocol.readString(frame);
+                            BinaryProtocol.readString(frame);
+                            this.recordDelivery(LoadGenerator.this.privateLatency, receiverId == this.clientId, BinaryProtocol.readRemaining(frame), now);
+                        }
+                        case BinaryProtocol.NOTICE -> {
+                            // The first line of a search response answers the pending /search
+                            long searchSentAt = this.searchSentAt;
+                            if (searchSentAt >= 0 && isSearchResponse(BinaryProtocol.readRemaining(frame))) {
+                                LoadGenerator.this.searchLatency.record(TimeUnit.NANOSECONDS.toMicros(now - searchSentAt));
+                                LoadGenerator.this.received.incrementAndGet();
+                                this.searchSentAt = -1;
+                            }
+                        }
+                        default -> {
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Closed, counted below unless the run is over
+            }
+            this.lost();
+        }
+
+        // Counts a message delivered to this connection, only measuring the ones sent by this run to someone else
+        private void recordDelivery(LatencyHistogram histogram, boolean measured, String content, long now) {
+            LoadGenerator.this.received.incrementAndGet();
+            if (!measured || !content.startsWith(LoadGenerator.this.runTag + " ")) {
+                return;
+            }
+
+            int start = LoadGenerator.this.runTag.length() + 1;
+            int end = content.indexOf(' ', start);
+            try {
+                long due = Long.parseLong(end < 0 ? content.substring(start) : content.substring(start, end));
+                histogram.record(TimeUnit.NANOSECONDS.toMicros(now - due));
+            } catch (NumberFormatException e) {
+                // Not one of ours after all
+            }
+        }
+
+        private void lost() {
+            if (LoadGenerator.this.running && !this.socket.isClosed()) {
+                LoadGenerator.this.disconnects.incrementAndGet();
+                this.close();
+            }
+        }
+
+        private void close() {
+            if (this.socket == null) {
+                return; // Never connected
+            }
+
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    private static boolean isSearchResponse(String notice) {
+        return notice.startsWith("- #") || notice.startsWith("No message(s) found.");
+    }
+
+    // "90:8:2" to the cumulative weights {90, 98, 100}
+    private static int[] parseMix(String value) {
+        int[] mix = {90, 98, 100};
+
+        try {
+            String[] parts = value.trim().split(":");
+            if (parts.length != 3) {
+                throw new NumberFormatException();
+            }
+
+            int[] weights = new int[3];
+            int total = 0;
+            for (int i = 0; i < 3; i++) {
+                int weight = Integer.parseInt(parts[i].trim());
+                if (weight < 0) {
+                    throw new NumberFormatException();
+                }
+                total += weight;
+                weights[i] = total;
+            }
+            if (total == 0) {
+                throw new NumberFormatException();
+            }
+            return weights;
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value \"" + value + "\" for chatroom.load.mix, using 90:8:2 instead.");
+            return mix;
+        }
+    }
+
+    private static String mixDescription(int[] mix) {
+        return "public " + mix[0] + ", private " + (mix[1] - mix[0]) + ", search " + (mix[2] - mix[1]);
+    }
+
+    // Reads an integer system property, falling back to the default if missing or invalid
+    private static int intProperty(String key, int defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value \"" + value + "\" for " + key + ", using " + defaultValue + " instead.");
+            return defaultValue;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: java [-Dchatroom.load.<option>=<value>...] chatroom.client.LoadGenerator <port> [host]");
+            return;
+        }
+
+        try {
+            int port = Integer.parseInt(args[0]);
+            String host = (args.length > 1 ? args[1] : System.getProperty("chatroom.load.host", "localhost"));
+            new LoadGenerator(host, port).run();
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid port \"" + args[0] + "\".");
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package chatroom.objects;
+
+import java.util.Arrays;
+
+// Compact set of numeric user ids: the ids in increasing order, so it takes 4 bytes per receiver whatever the ids.
+// Rooms visit their members in id order, so filling it only appends.
+// Not thread-safe, a message's receivers are filled by the thread sending it
+public class IdSet {
+    private int[] ids = new int[0];
+    private int size;
+
+    // Makes room for the given number of ids, e.g. the members of a room before a broadcast
+    public void ensureCapacity(int capacity) {
+        if (this.ids.length < capacity) {
+            this.ids = Arrays.copyOf(this.ids, capacity);
+        }
+    }
+
+    public void add(int id) {
+        int index = (this.size == 0 || this.ids[this.size - 1] < id ? this.size : Arrays.binarySearch(this.ids, 0, this.size, id));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        else if (index < this.size) {
+            return; // Already in the set
+        }
+
+        if (this.size == this.ids.length) {
+            this.ids = Arrays.copyOf(this.ids, Math.max(4, this.size * 2));
+        }
+        System.arraycopy(this.ids, index, this.ids, index + 1, this.size - index);
+        this.ids[index] = id;
+        this.size++;
+    }
+
+    public boolean contains(int id) {
+        return Arrays.binarySearch(this.ids, 0, this.size, id) >= 0;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    // The ids in increasing order
+    public int[] toArray() {
+        return Arrays.copyOf(this.ids, this.size);
+    }
+}
@@ -0,0 +1,103 @@
+package chatroom.objects;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free latency histogram in the style of HdrHistogram: log-linear buckets keep every recorded value within
+// about 1.6% of its true value (7 bits of precision), from 1 microsecond up to any long, in a fixed 30 KB.
+// Any number of threads may record while another reads percentiles. Used by the server's metrics and the load generator
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // Values below this get a bucket each
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    // Records one value, in microseconds, negative values (e.g. clock adjustments) count as 0
+    public void record(long micros) {
+        long value = Math.max(0, micros);
+
+        this.counts.incrementAndGet(index(value));
+        this.total.increment();
+        this.sum.add(value);
+
+        // Only contended while the maximum is still rising
+        long max;
+        while (value > (max = this.max.get()) && !this.max.compareAndSet(max, value)) {
+        }
+    }
+
+    public long count() {
+        return this.total.sum();
+    }
+
+    public long max() {
+        return this.max.get();
+    }
+
+    public double mean() {
+        long count = this.total.sum();
+        return (count == 0 ? 0 : (double) this.sum.sum() / count);
+    }
+
+    // The value at the percentile (0 - 100), i.e. the highest value of the bucket reaching that share of the counts
+    public long percentile(double percentile) {
+        long count = this.total.sum();
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+
+        for (int i = 0; i < this.counts.length(); i++) {
+            seen += this.counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValue(i), this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+
+    // One line summary, e.g. "n=1000 mean=412us p50=380us p90=610us p99=1.2ms p99.9=3.4ms max=5.1ms"
+    public String summary() {
+        return "n=" + this.count() + " mean=" + format(Math.round(this.mean())) + " p50=" + format(this.percentile(50))
+                + " p90=" + format(this.percentile(90)) + " p99=" + format(this.percentile(99))
+                + " p99.9=" + format(this.percentile(99.9)) + " max=" + format(this.max());
+    }
+
+    // Buckets below SUB_BUCKETS hold one value each, above that every power of two is split into HALF buckets
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long lowest = (long) ((index - SUB_BUCKETS) % HALF + HALF) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    // Microseconds in a readable unit, e.g. 850us, 1.2ms or 3.40s
+    public static String format(long micros) {
+        if (micros < 1000) {
+            return micros + "us";
+        }
+        if (micros < 1_000_000) {
+            return String.format("%.1fms", micros / 1000.0);
+        }
+        return String.format("%.2fs", micros / 1_000_000.0);
+    }
+}
@@ -1,21 +1,67 @@
 package chatroom.objects;
 
+import chatroom.protocol.BinaryProtocol;
 import chatroom.server.ClientConnection;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Calendar;
+import java.nio.charset.StandardCharsets;
 
 // Represents the Message object that is being used in the server
 public class Message {
+    public long id = -1; // Increasing, assigned once when the message is stored by the server
+    public String room; // Name of the room of a public message, set along with the id. Null for private messages
     public final String content;
-    public final String sentTime;
-    public final ClientConnection sender;
-    public final ArrayList<ClientConnection> receivers;
+    public final long sentAt; // Epoch millis, only formatted when rendered as text
+    public final String senderName;
+    public final String senderId;
+    public final ClientConnection sender; // Null for messages restored from the message log or relayed from other nodes
+    public final IdSet receivers; // Numeric ids, names are looked up in the server's UserDirectory when needed
+    private volatile byte[] frame; // Encoded chat line, built on first use and shared by every recipient
+    private volatile byte[] binaryFrame; // Same for clients using the binary protocol
 
     public Message (String content, ClientConnection sender) {
         this.content = content.trim();
-        this.sentTime = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(Calendar.getInstance().getTime());
+        this.sentAt = System.currentTimeMillis();
+        this.senderName = sender.name();
+        this.senderId = sender.id();
         this.sender = sender;
-        this.receivers = new ArrayList<>();
+        this.receivers = new IdSet();
+    }
+
+    // Message restored from the message log or relayed by another node of the cluster, its sender is not connected here
+    public Message (long id, String room, String content, long sentAt, String senderName, String senderId) {
+        this.id = id;
+        this.room = room;
+        this.content = content;
+        this.sentAt = sentAt;
+        this.senderName = senderName;
+        this.senderId = senderId;
+        this.sender = null;
+        this.receivers = new IdSet();
+    }
+
+    public String sentTime() {
+        return Timestamps.format(this.sentAt);
+    }
+
+    // Returns the chat line "time name#id: content" encoded as UTF-8 with its line break, ready to be queued as is.
+    // Two threads racing here build equal frames, so no locking is needed
+    public byte[] frame() {
+        byte[] frame = this.frame;
+
+        if (frame == null) {
+            frame = (this.sentTime() + " " + this.senderName + "#" + this.senderId + ": " + this.content + "\n").getBytes(StandardCharsets.UTF_8);
+            this.frame = frame;
+        }
+        return frame;
+    }
+
+    // Returns the CHAT frame of the binary protocol, cached like frame()
+    public byte[] binaryFrame() {
+        byte[] frame = this.binaryFrame;
+
+        if (frame == null) {
+            frame = BinaryProtocol.chatFrame(this);
+            this.binaryFrame = frame;
+        }
+        return frame;
     }
 }
\ No newline at end of file
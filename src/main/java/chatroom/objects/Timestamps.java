@@ -0,0 +1,35 @@
+package chatroom.objects;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+// Formats message times as "yyyy/MM/dd HH:mm:ss". Messages arrive in bursts within the same second,
+// so the last formatted second is cached and rendering a timestamp usually allocates nothing
+public class Timestamps {
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    // Replaced as a whole, so readers always see a matching second and text without locking
+    private static volatile Cached last = new Cached(Long.MIN_VALUE, null);
+
+    public static String format(long epochMillis) {
+        long second = Math.floorDiv(epochMillis, 1000);
+        Cached cached = last;
+
+        if (cached.second != second) {
+            cached = new Cached(second, FORMAT.format(Instant.ofEpochSecond(second)));
+            last = cached;
+        }
+        return cached.text;
+    }
+
+    private static class Cached {
+        private final long second;
+        private final String text;
+
+        private Cached(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+}
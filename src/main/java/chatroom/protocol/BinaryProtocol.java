@@ -0,0 +1,140 @@
+package chatroom.protocol;
+
+import chatroom.objects.Message;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Compact binary protocol, an alternative to the newline-delimited text protocol for high volume (bot) clients.
+//
+// Negotiation: the server always starts with the text name prompt line. A client that wants the binary protocol
+// reads that line and answers with MAGIC instead of a name, then both sides only exchange frames.
+//
+// Frame: int length (of opcode + payload) | byte opcode | payload. Strings are int length + UTF-8 bytes,
+// except the last field of a frame, which takes the rest of the frame. All numbers are big-endian.
+// A client's frames carry at most MAX_TEXT_LENGTH bytes of text, like the lines of text clients, so the frames the
+// server builds from them stay within MAX_FRAME_LENGTH.
+//
+// Client to server:
+//   HELLO   name
+//   CHAT    content
+//   PRIVATE int receiverId | content
+//   COMMAND command line, e.g. "/search hello"
+//   RESUME  long lastSeenId | name (instead of HELLO when reconnecting, only the messages after lastSeenId are replayed)
+// Server to client:
+//   WELCOME int clientId | name
+//   CHAT    long messageId | long sentAt | int senderId | string senderName | content
+//   PRIVATE long messageId | long sentAt | int senderId | int receiverId | string senderName | string receiverName | content
+//   NOTICE  text (system messages and command responses, possibly several lines)
+//   COMPRESSED int inflatedLength | deflated frames, to clients that sent "/compress" (see Compression)
+public class BinaryProtocol {
+    public static final byte[] MAGIC = {0, 'C', 'R', 1}; // Never the start of a name line, the last byte is the version
+    public static final int MAX_FRAME_LENGTH = 256 * 1024;
+    public static final int MAX_TEXT_LENGTH = 64 * 1024; // Bytes of a text line, longer is treated as a misbehaving client
+    public static final int MAX_CLIENT_FRAME_LENGTH = 1 + 8 + MAX_TEXT_LENGTH; // Opcode, fixed fields (RESUME's at most) and text
+    public static final int MAX_NOTICE_CHARS = (MAX_FRAME_LENGTH - 1) / 3; // Longest NOTICE text sure to fit, at 3 bytes a character
+
+    public static final byte HELLO = 1;
+    public static final byte WELCOME = 2;
+    public static final byte CHAT = 3;
+    public static final byte PRIVATE = 4;
+    public static final byte COMMAND = 5;
+    public static final byte NOTICE = 6;
+    public static final byte RESUME = 7;
+    public static final byte COMPRESSED = 8;
+
+    // Encoding
+
+    public static byte[] chatFrame(Message msg) {
+        byte[] name = utf8(msg.senderName);
+        byte[] content = utf8(msg.content);
+
+        ByteBuffer frame = allocate(8 + 8 + 4 + 4 + name.length + content.length, CHAT);
+        frame.putLong(msg.id).putLong(msg.sentAt).putInt(Integer.parseInt(msg.senderId));
+        frame.putInt(name.length).put(name).put(content);
+        return frame.array();
+    }
+
+    public static byte[] privateFrame(Message msg, int receiverId, String receiverName) {
+        byte[] senderName = utf8(msg.senderName);
+        byte[] receiver = utf8(receiverName);
+        byte[] content = utf8(msg.content);
+
+        ByteBuffer frame = allocate(8 + 8 + 4 + 4 + 4 + senderName.length + 4 + receiver.length + content.length, PRIVATE);
+        frame.putLong(msg.id).putLong(msg.sentAt).putInt(Integer.parseInt(msg.senderId)).putInt(receiverId);
+        frame.putInt(senderName.length).put(senderName).putInt(receiver.length).put(receiver).put(content);
+        return frame.array();
+    }
+
+    public static byte[] welcomeFrame(int clientId, String name) {
+        byte[] nameBytes = utf8(name);
+        return allocate(4 + nameBytes.length, WELCOME).putInt(clientId).put(nameBytes).array();
+    }
+
+    // A single string payload, used for HELLO, CHAT and COMMAND from clients and NOTICE from the server
+    public static byte[] textFrame(byte opcode, String text) {
+        byte[] bytes = utf8(text);
+        return allocate(bytes.length, opcode).put(bytes).array();
+    }
+
+    // PRIVATE from a client
+    public static byte[] privateRequestFrame(int receiverId, String content) {
+        byte[] bytes = utf8(content);
+        return allocate(4 + bytes.length, PRIVATE).putInt(receiverId).put(bytes).array();
+    }
+
+    // RESUME from a reconnecting client
+    public static byte[] resumeFrame(long lastSeenId, String name) {
+        byte[] bytes = utf8(name);
+        return allocate(8 + bytes.length, RESUME).putLong(lastSeenId).put(bytes).array();
+    }
+
+    // Decoding
+
+    // Reads one frame from a blocking stream, returning its opcode followed by the payload, or null on end of stream
+    public static ByteBuffer readFrame(DataInputStream in) throws IOException {
+        return readFrame(in, MAX_FRAME_LENGTH);
+    }
+
+    // Same, failing on frames longer than maxLength (e.g. MAX_CLIENT_FRAME_LENGTH)
+    public static ByteBuffer readFrame(DataInputStream in, int maxLength) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        if (length < 1 || length > maxLength) {
+            throw new IOException("Invalid frame length " + length + ".");
+        }
+
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return ByteBuffer.wrap(frame);
+    }
+
+    // Reads an int length prefixed string
+    public static String readString(ByteBuffer buffer) {
+        return readString(buffer, buffer.getInt());
+    }
+
+    // Reads the rest of the frame as a string
+    public static String readRemaining(ByteBuffer buffer) {
+        return readString(buffer, buffer.remaining());
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static ByteBuffer allocate(int payloadLength, byte opcode) {
+        return ByteBuffer.allocate(4 + 1 + payloadLength).putInt(1 + payloadLength).put(opcode);
+    }
+
+    private static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
\ No newline at end of file
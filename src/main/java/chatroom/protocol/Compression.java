@@ -0,0 +1,145 @@
+package chatroom.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Deflate compression of bulk payloads (history replays, long command responses) for clients that asked for it
+// with "/compress". A compressed payload travels as a COMPRESSED frame in both protocols, and holds what would
+// have been sent otherwise: text lines for text clients, frames for binary ones. Text clients tell it from a line
+// because it starts with a 0 byte (the high byte of its length), which no text line starts with.
+//
+// COMPRESSED: int length | byte opcode | int inflatedLength | zlib stream preset with DICTIONARY
+//
+// Both sides preset the same dictionary of phrases the server repeats, so even a few lines compress well.
+// Deflaters are pooled with their output buffers, so compressing only allocates the resulting frame
+public class Compression {
+    public static final int MIN_BYTES = 512; // Smaller payloads are not worth compressing
+    public static final int MAX_INFLATED_LENGTH = 4 * 1024 * 1024;
+    private static final int POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    // The most frequent phrases last, zlib finds them at the shortest distances
+    private static final byte[] DICTIONARY = String.join("\n",
+            "You are already in room You are the only user currently in room No user in room ",
+            "Invalid format. Please use: /history [before-id] [count]",
+            "Here is the list of all commands:",
+            "- /msg name#id message || Sends a private message to user with given id.",
+            "- /search keyword || Searches for all messages or users by specified keyword.",
+            "- /history [before-id] [count] || Shows older messages of the chat room, before the given message id.",
+            "Server statistics (port , up s):",
+            "- Users:  connected,  connection(s) opened",
+            "- Messages:  public,  private, /s",
+            "- Commands:  handled",
+            "Rooms on this server:",
+            "  user(s)) <- you are here",
+            "No older message(s) found.",
+            "Messages before #",
+            "Type /history  to see older messages.",
+            "Only the last  message(s) are shown. Type /history to see older ones.",
+            " new message(s) in room  since #",
+            "Past messages in room lobby:",
+            "Welcome  to the chat room! You are currently connected to port .",
+            "You are in room lobby. Type /join room to move to another room.",
+            "Type /commands to view all commands in the chat room.",
+            "You can start chatting by typing a message and pressing enter",
+            "You are currently in room lobby with  other user(s), all  users of the room:",
+            " has joined the room. has moved to room  has left the room.",
+            "Showing the  most recent matches only.",
+            "- #\" by #000 at 20",
+            "[From #000] [To #000] ",
+            " 20/:#000: ",
+            "").getBytes(StandardCharsets.UTF_8);
+
+    private static final ArrayBlockingQueue<Encoder> encoders = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    // Returns the COMPRESSED frame of payload[offset, offset + length), or null if it is not worth sending
+    // compressed (too short, not smaller, or too large for a frame)
+    public static byte[] compressedFrame(byte[] payload, int offset, int length) {
+        if (length < MIN_BYTES || length > MAX_INFLATED_LENGTH) {
+            return null;
+        }
+
+        Encoder encoder = encoders.poll();
+        if (encoder == null) {
+            encoder = new Encoder();
+        }
+
+        try {
+            return encoder.frame(payload, offset, length);
+        } finally {
+            if (!encoders.offer(encoder)) {
+                encoder.deflater.end(); // The pool is full, free the native memory now
+            }
+        }
+    }
+
+    private static class Encoder {
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        private byte[] buffer = new byte[0];
+
+        private byte[] frame(byte[] payload, int offset, int length) {
+            int capacity = Math.min(4 + 1 + 4 + length, 4 + BinaryProtocol.MAX_FRAME_LENGTH); // Larger is not worth it
+            if (this.buffer.length < capacity) {
+                this.buffer = new byte[capacity];
+            }
+
+            this.deflater.reset();
+            this.deflater.setDictionary(DICTIONARY);
+            this.deflater.setInput(payload, offset, length);
+            this.deflater.finish();
+
+            int size = 4 + 1 + 4;
+            while (!this.deflater.finished() && size < capacity) {
+                size += this.deflater.deflate(this.buffer, size, capacity - size);
+            }
+            if (!this.deflater.finished()) {
+                return null;
+            }
+
+            ByteBuffer.wrap(this.buffer).putInt(size - 4).put(BinaryProtocol.COMPRESSED).putInt(length);
+            return Arrays.copyOf(this.buffer, size);
+        }
+    }
+
+    // Expands the COMPRESSED frames of one connection, reusing its inflater and output buffer
+    public static class Decoder {
+        private final Inflater inflater = new Inflater();
+        private byte[] buffer = new byte[0];
+
+        // Inflates the payload of a COMPRESSED frame (what follows its opcode). The result is only valid until the
+        // next call, which reuses its buffer
+        public ByteBuffer inflate(ByteBuffer payload) throws DataFormatException {
+            int length = payload.getInt();
+            if (length < 0 || length > MAX_INFLATED_LENGTH) {
+                throw new DataFormatException("Invalid inflated length " + length + ".");
+            }
+            if (this.buffer.length < length) {
+                this.buffer = new byte[length];
+            }
+
+            this.inflater.reset();
+            this.inflater.setInput(payload);
+
+            int size = 0;
+            while (size < length) {
+                int inflated = this.inflater.inflate(this.buffer, size, length - size);
+                if (inflated == 0 && this.inflater.needsDictionary()) {
+                    this.inflater.setDictionary(DICTIONARY);
+                }
+                else if (inflated == 0 && (this.inflater.needsInput() || this.inflater.finished())) {
+                    throw new DataFormatException("Truncated compressed frame.");
+                }
+                size += inflated;
+            }
+            return ByteBuffer.wrap(this.buffer, 0, length);
+        }
+
+        public void end() {
+            this.inflater.end();
+        }
+    }
+}
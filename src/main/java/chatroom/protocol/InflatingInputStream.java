@@ -0,0 +1,135 @@
+package chatroom.protocol;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+
+// Input of a text client that asked for compression: expands the COMPRESSED frames found at the start of a line
+// (see Compression), so what is read through it is the same text the server would have sent uncompressed
+public class InflatingInputStream extends FilterInputStream {
+    private static final int CHUNK = 8192;
+
+    private final Compression.Decoder decoder = new Compression.Decoder();
+    private final byte[] raw = new byte[CHUNK]; // Read ahead from the socket, up to rawLimit
+    private int rawPosition;
+    private int rawLimit;
+    private ByteBuffer inflated = ByteBuffer.allocate(0); // Rest of the last frame expanded
+    private final byte[] header = new byte[4];
+    private byte[] frame = new byte[0];
+    private boolean lineStart = true;
+
+    public InflatingInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return (this.read(one, 0, 1) < 0 ? -1 : one[0] & 0xff);
+    }
+
+    // Returns text up to the end of the current read-ahead, or up to the next compressed frame
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        while (!this.inflated.hasRemaining()) {
+            if (this.rawPosition == this.rawLimit && !this.fill()) {
+                return -1;
+            }
+            if (!this.lineStart || this.raw[this.rawPosition] != 0) {
+                break;
+            }
+            this.expandFrame();
+        }
+
+        int count;
+        if (this.inflated.hasRemaining()) {
+            count = Math.min(length, this.inflated.remaining());
+            this.inflated.get(buffer, offset, count);
+        }
+        else {
+            // Stops after a line break that may be followed by a frame
+            int end = this.rawPosition + Math.min(length, this.rawLimit - this.rawPosition);
+            int i = this.rawPosition;
+            while (i < end) {
+                if (this.raw[i++] == '\n' && (i == this.rawLimit || this.raw[i] == 0)) {
+                    break;
+                }
+            }
+
+            count = i - this.rawPosition;
+            System.arraycopy(this.raw, this.rawPosition, buffer, offset, count);
+            this.rawPosition = i;
+        }
+
+        this.lineStart = (buffer[offset + count - 1] == '\n');
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return this.inflated.remaining() + (this.rawLimit - this.rawPosition) + this.in.available();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.decoder.end();
+        super.close();
+    }
+
+    private boolean fill() throws IOException {
+        int read = this.in.read(this.raw, 0, CHUNK);
+        this.rawPosition = 0;
+        this.rawLimit = Math.max(0, read);
+        return read > 0;
+    }
+
+    // Reads the COMPRESSED frame starting the read-ahead and expands it
+    private void expandFrame() throws IOException {
+        this.readRaw(this.header, 4);
+        int length = ByteBuffer.wrap(this.header).getInt();
+
+        if (length < 1 + 4 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + length + ".");
+        }
+        if (this.frame.length < length) {
+            this.frame = new byte[length];
+        }
+        this.readRaw(this.frame, length);
+
+        if (this.frame[0] != BinaryProtocol.COMPRESSED) {
+            throw new IOException("Unexpected frame type " + this.frame[0] + ".");
+        }
+
+        try {
+            this.inflated = this.decoder.inflate(ByteBuffer.wrap(this.frame, 1, length - 1));
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed frame.", e);
+        }
+    }
+
+    // Reads exactly length bytes, from the read-ahead first
+    private void readRaw(byte[] buffer, int length) throws IOException {
+        int count = 0;
+        while (count < length) {
+            if (this.rawPosition == this.rawLimit && !this.fill()) {
+                throw new IOException("Connection closed in the middle of a frame.");
+            }
+
+            int n = Math.min(length - count, this.rawLimit - this.rawPosition);
+            System.arraycopy(this.raw, this.rawPosition, buffer, count, n);
+            this.rawPosition += n;
+            count += n;
+        }
+    }
+}
@@ -1,169 +1,947 @@
 package chatroom.server;
 
 import chatroom.objects.Message;
+import chatroom.protocol.BinaryProtocol;
 import java.io.*;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.regex.Matcher;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 import java.util.regex.Pattern;
 
 public class ClientConnection implements Runnable {
-    private final Socket clientSocket;
+    private static final int MAX_HISTORY_PAGE = 500;
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+"); // Compiled once, String.split would compile it per call
+    private static final int MAX_NAME_LENGTH = 32; // Keeps every frame carrying a name within BinaryProtocol.MAX_FRAME_LENGTH
+    private static final long NOTICE_DRAIN_NANOS = TimeUnit.MILLISECONDS.toNanos(200); // Wait for a last notice to be written
+    private static final long DRAIN_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Socket clientSocket; // Only set when served by the blocking engine
+    private final NioConnection nioConnection; // Only set when served by the NIO engine
     private final Server hostServer;
-    private ExecutorService threadPool;
-    protected BufferedReader in;
+    private OutputStream socketOut; // Only written by the writer task draining the outbound queue
+    protected LineReader in;
     protected PrintWriter out;
+    protected OutboundWriter writer; // Behind out
+    protected OutboundQueue outbound;
+    protected volatile boolean binary; // Whether the client switched to the binary protocol
+    protected volatile boolean compress; // Whether the client decodes COMPRESSED frames, see /compress
     protected String name;
     protected String id;
-    protected ArrayList<Message> messages;
+    protected int numericId; // id as a number
+    protected volatile Room room; // Set once the client has joined
+    protected long historyCursor; // Id of the oldest public message of its room this client has seen
+    protected long resumeAfter = -1; // Last message id a reconnecting client had seen, -1 for the usual replay on join
+    protected RateLimiter messageLimiter; // Public and private messages
+    protected RateLimiter commandLimiter; // Every other command
+    private long throttleNanos; // Time to wait before reading on (THROTTLE policy, blocking engines)
+    private boolean warnedOverLimit; // Only the first line dropped in a row is answered, the answers could flood too
+    private final AtomicBoolean closed = new AtomicBoolean();
 
     public ClientConnection(Socket client, Server server) {
         this.clientSocket = client;
+        this.nioConnection = null;
+        this.hostServer = server;
+    }
+
+    // ClientConnection served by the NIO engine, lines are pushed in by the NioConnection through handleLine
+    protected ClientConnection(NioConnection connection, Server server) {
+        this.clientSocket = null;
+        this.nioConnection = connection;
+        this.hostServer = server;
+        this.outbound = new OutboundQueue(server.config, connection::scheduleFlush, connection::closeLater);
+        this.writer = new OutboundWriter(this.outbound);
+        this.out = new PrintWriter(this.writer, true); // Auto flush, each println is queued for the event loop
+    }
+
+    // ClientConnection without a socket, as if connected to an infinitely fast client: whatever is queued to it is
+    // discarded right away. Used to measure the server's own costs (see the benchmarks module)
+    protected ClientConnection(Server server) {
+        this.clientSocket = null;
+        this.nioConnection = null;
         this.hostServer = server;
+        this.outbound = new OutboundQueue(server.config, this::discardOutbound, () -> {});
+        this.writer = new OutboundWriter(this.outbound);
+        this.out = new PrintWriter(this.writer, true);
     }
 
     @Override
     public void run() {
         // Initialize important variables
-        this.threadPool = Executors.newCachedThreadPool();
-        this.messages = new ArrayList<>();
-        this.id = String.format("%05d", this.hostServer.globalId++); // 5 digits id
+        this.numericId = this.hostServer.globalId.getAndIncrement();
+        this.id = String.format("%05d", this.numericId); // 5 digits id
+        this.hostServer.metrics.connectionsOpened.increment();
+        this.hostServer.openConnections.add(this);
+        this.createLimiters();
+        BufferedInputStream input;
 
-        // Client IO streams
+        // Client IO streams. Output is queued and written to the socket by a separate writer task, so a slow client
+        // never blocks whoever is sending to it, and socket writes never happen inside the PrintWriter's monitor
+        // (which would pin a virtual thread)
         try {
-            this.in = new BufferedReader(new InputStreamReader(this.clientSocket.getInputStream()));
-            this.out = new PrintWriter(new OutputStreamWriter(this.clientSocket.getOutputStream()), true); // Auto flush, so no need to call flush()
+            input = new BufferedInputStream(this.hostServer.metrics.countingInput(this.clientSocket.getInputStream()));
+            this.socketOut = new BufferedOutputStream(this.clientSocket.getOutputStream());
+            this.outbound = new OutboundQueue(this.hostServer.config, () -> this.hostServer.execute(this::drainOutbound), this::closeSocket);
+            this.writer = new OutboundWriter(this.outbound);
+            this.out = new PrintWriter(this.writer, true); // Auto flush, each println is queued at once
+            this.clientSocket.setSoTimeout(timeoutMillis(this.hostServer.config.handshakeTimeoutSeconds));
         } catch (IOException e) {
             System.err.println("Failed to start IO streams on ClientConnection" + this.id + ".");
             this.close();
+            return;
+        }
+
+        this.out.println("Please enter your name before entering the chat room (CANNOT be empty):");
+
+        // A binary client answers the prompt with the protocol's magic bytes instead of a name
+        try {
+            input.mark(1);
+            int first = input.read();
+            input.reset();
+
+            if (first < 0) {
+                this.disconnect(); // Left before answering
+                return;
+            }
+            if (first == BinaryProtocol.MAGIC[0]) {
+                this.listenForClientFrames(new DataInputStream(input));
+                return;
+            }
+        } catch (SocketTimeoutException e) {
+            this.timeOut();
+            return;
+        } catch (IOException e) {
+            this.disconnect();
+            return;
         }
 
+        this.in = new LineReader(input);
+
         // Ask for name
         try {
-            do {
-                this.out.println("Please enter your name before entering the chat room (CANNOT be empty):");
-            } while ((this.name = this.in.readLine().trim()).isEmpty());
+            String name;
+            while ((name = this.in.readLine()) != null && !this.acceptName(name)) {
+                // Asked again by acceptName
+            }
 
-            System.out.println(this.name + "#" + this.id + " connected to the server on port " + this.hostServer.serverPort + "."); // Informs the server
+            if (name == null) {
+                this.disconnect(); // Left before entering a name
+                return;
+            }
+        } catch (SocketTimeoutException e) {
+            this.timeOut();
+            return;
+        } catch (LineReader.LineTooLongException e) {
+            this.lineTooLong();
+            return;
         } catch (IOException e) {
             System.err.println("Failed to read name on ClientConnection " + this.id + ".");
-            this.close();
+            this.disconnect();
+            return;
         }
 
-        // Add to the list of connected clients
-        this.hostServer.clientConnections.add(this);
+        this.join();
 
-        // Prints the current server chat history
-        this.printChatHistory();
-        this.out.println();
+        // Handling the message by picking up outputs from Client class as an input, on this same thread
+        this.listenForClientMessage();
+    }
 
-        // Welcome message
-        this.out.println("Welcome " + this.name + "#" + this.id + " to the chat room! You are currently connected to port " + this.hostServer.serverPort + ".");
-        this.out.println("Type /commands to view all commands in the chat room.");
-        this.out.println();
+    public String name() {
+        return this.name;
+    }
 
-        // Print all other clients in the chat room to the new client
-        this.printOtherConnectedClients();
-        this.out.println();
-        this.out.println("You can start chatting by typing a message and pressing enter");
+    public String id() {
+        return this.id;
+    }
 
-        // Handling the message by picking up outputs from Client class as an input
-        this.listenForClientMessage();
+    // Queues a line to this client from another connection's thread. Unlike out, this may wait for room under
+    // the BLOCK slow consumer policy, except on NIO event loops which must never wait
+    protected void send(String line) {
+        if (this.binary) {
+            this.send(BinaryProtocol.textFrame(BinaryProtocol.NOTICE, line));
+        }
+        else {
+            this.send((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
     }
 
-    // Listens for client message
-    private void listenForClientMessage() {
-        this.threadPool.execute(() -> {
-            String messageFromClient;
+    // Queues a chat message in this client's protocol, the frame is encoded once and shared by all its recipients
+    protected void sendMessage(Message msg) {
+        this.send(this.binary ? msg.binaryFrame() : msg.frame());
+    }
 
-            try {
-                while ((messageFromClient = this.in.readLine()) != null) {
-                    messageFromClient = messageFromClient.trim(); // Ensures no leading or trailing whitespaces
-
-                    // Command messages
-                    if (messageFromClient.startsWith("/")) {
-                        String[] messageParts = messageFromClient.substring(1).split(" ", 2);
-                        String command = messageParts[0].trim();
-                        String args = (messageParts.length > 1 ? messageParts[1] : "").trim();
-
-                        switch (command.toLowerCase()) {
-                            case "commands":
-                                this.printCommandsList();
-                                break;
-                            case "current-server":
-                                this.out.println("You are currently connected to server on port: " + this.hostServer.serverPort);
-                                break;
-                            case "users-list":
-                                this.printOtherConnectedClients();
-                                break;
-                            case "msg":
-                                this.sendPrivateMessage(args);
-                                break;
-                            case "search":
-                                this.searchForMessage(args);
-                                break;
-                            case "print-receivers":
-                                this.printMessageReceivers(args);
-                                break;
-                            default:
-                                this.out.println("Unknown command. Type /commands for available commands.");
-                        }
+    // Queues one side of a private conversation in this client's protocol. The receiver may be on another node
+    protected void sendPrivate(Message msg, String receiverName, String receiverId) {
+        if (this.binary) {
+            this.send(BinaryProtocol.privateFrame(msg, Integer.parseInt(receiverId), receiverName));
+        }
+        else if (receiverId.equals(this.id)) {
+            this.send("[From " + msg.senderName + "#" + msg.senderId + "] " + msg.sentTime() + ": " + msg.content);
+        }
+        else {
+            this.send("[To " + receiverName + "#" + receiverId + "] " +  msg.sentTime() + ": " + msg.content);
+        }
+    }
+
+    // Queues an already encoded frame, which may be shared with other clients and must not be modified.
+    // Text this client's own thread has batched so far goes first, so the response keeps its order
+    protected void send(byte[] frame) {
+        if (this.writer.inBatch()) {
+            this.writer.sendPending();
+        }
+        this.outbound.offer(frame, this.nioConnection == null);
+    }
+
+    // Writer task of the blocking engines: writes queued frames to the socket until the queue is empty
+    private void drainOutbound() {
+        try {
+            do {
+                byte[] frame;
+                long written = 0;
+                while ((frame = this.outbound.poll()) != null) {
+                    this.socketOut.write(frame);
+                    written += frame.length;
+                }
+                this.socketOut.flush();
+                this.hostServer.metrics.bytesOut.add(written);
+                this.hostServer.metrics.socketWrites.increment();
+            } while (this.outbound.finishDrain());
+        } catch (IOException e) {
+            // The reader side notices the broken socket and handles the leaving
+            this.outbound.clear();
+        }
+    }
+
+    // Writer task of a ClientConnection without a socket
+    private void discardOutbound() {
+        do {
+            while (this.outbound.poll() != null) {
+                // Discarded
+            }
+        } while (this.outbound.finishDrain());
+    }
+
+    // Closes the socket of a client that cannot keep up, the reader thread then handles the leaving
+    private void closeSocket() {
+        System.out.println(this.name + "#" + this.id + " cannot keep up with incoming messages and is being disconnected.");
+
+        try {
+            this.clientSocket.close();
+        } catch (IOException e) {
+            System.err.println("An error occurred when attempting to close client " + this.name + "#" + this.id + ".");
+        }
+    }
+
+    // Starts the name handshake of a NIO served (or socketless) client, the name arrives later as the first line
+    protected void open() {
+        this.numericId = this.hostServer.globalId.getAndIncrement();
+        this.id = String.format("%05d", this.numericId); // 5 digits id
+        this.hostServer.metrics.connectionsOpened.increment();
+        this.hostServer.openConnections.add(this);
+        this.createLimiters();
+        this.out.println("Please enter your name before entering the chat room (CANNOT be empty):");
+    }
+
+    private void createLimiters() {
+        ServerConfig config = this.hostServer.config;
+        this.messageLimiter = new RateLimiter(config.messagesPerSecond, config.messageBurst);
+        this.commandLimiter = new RateLimiter(config.commandsPerSecond, config.commandBurst);
+    }
+
+    // Switches to the binary protocol after the client answered the name prompt with the magic bytes
+    protected void startBinary() {
+        this.binary = true;
+        this.writer.binary = true;
+    }
+
+    // Handles one frame (opcode followed by payload) from a binary client, a HELLO with the name until it has joined
+    protected void handleFrame(ByteBuffer frame) {
+        try {
+            byte opcode = frame.get();
+
+            if (this.name == null) {
+                // Options may come before the name
+                if (opcode == BinaryProtocol.COMMAND && this.acceptOption(BinaryProtocol.readRemaining(frame).trim())) {
+                    return;
+                }
+
+                long resumeAfter = (opcode == BinaryProtocol.RESUME ? frame.getLong() : -1);
+                boolean hello = (opcode == BinaryProtocol.HELLO || opcode == BinaryProtocol.RESUME);
+                String name = (hello ? BinaryProtocol.readRemaining(frame).trim() : "");
+
+                if (name.isEmpty()) {
+                    this.out.println("Please enter your name before entering the chat room (CANNOT be empty):");
+                }
+                else if (name.length() > MAX_NAME_LENGTH) {
+                    this.out.println("Please enter a name of at most " + MAX_NAME_LENGTH + " characters:");
+                }
+                else {
+                    this.name = name;
+                    this.resumeAfter = Math.max(-1, resumeAfter);
+                    this.join();
+                }
+                return;
+            }
+
+            switch (opcode) {
+                case BinaryProtocol.CHAT:
+                    String content = BinaryProtocol.readRemaining(frame).trim();
+                    if (content.isEmpty()) {
+                        this.out.println("Please send a non-empty message.");
                     }
-                    // Normal messages
-                    else if (!messageFromClient.isEmpty()){
-                        Message msg = new Message(messageFromClient, this);
-                        this.hostServer.broadcastMessage(msg);
+                    else if (this.admit(false)) {
+                        this.room.broadcast(new Message(content, this));
                     }
-                    else {
-                        this.out.println("Please send a non-empty message.");
+                    break;
+                case BinaryProtocol.PRIVATE:
+                    if (!this.admit(false)) {
+                        break;
                     }
+                    int receiverId = frame.getInt();
+                    String messageToSend = BinaryProtocol.readRemaining(frame).trim();
+                    ClientConnection receiver = this.hostServer.clientConnections.get(receiverId);
+                    ClusterNode.RemoteUser remoteReceiver = (receiver == null ? this.hostServer.cluster.get(receiverId) : null);
+                    this.sendPrivateMessage(receiver, remoteReceiver, "#" + String.format("%05d", receiverId), messageToSend);
+                    break;
+                case BinaryProtocol.COMMAND:
+                    this.handleClientMessage(BinaryProtocol.readRemaining(frame));
+                    break;
+                default:
+                    this.out.println("Unknown frame type " + opcode + ".");
+            }
+        } catch (BufferUnderflowException e) {
+            this.out.println("Malformed frame.");
+        }
+    }
+
+    // Handles one line from a NIO served (or socketless) client, which is the name until the client has joined
+    protected void handleLine(String line) {
+        if (this.name == null) {
+            if (this.acceptName(line)) {
+                this.join();
+            }
+            return;
+        }
+
+        this.handleClientMessage(line);
+    }
+
+    // Takes the answer to the name prompt, either the name or "/resume <last-seen-id> <name>" from a reconnecting
+    // client. Asks again and returns false if there is no name, returns false too after an option line
+    private boolean acceptName(String line) {
+        line = line.trim();
+        long resumeAfter = -1;
+
+        if (this.acceptOption(line)) {
+            return false;
+        }
+
+        if (line.startsWith("/resume ")) {
+            String[] parts = WHITESPACE.split(line, 3);
+            try {
+                resumeAfter = Math.max(-1, Long.parseLong(parts[1]));
+            } catch (NumberFormatException e) {
+                this.out.println("Invalid format. Please use: /resume <last-seen-id> <name>");
+                return false;
+            }
+            line = (parts.length > 2 ? parts[2] : "");
+        }
+
+        if (line.isEmpty()) {
+            this.out.println("Please enter your name before entering the chat room (CANNOT be empty):");
+            return false;
+        }
+        if (line.length() > MAX_NAME_LENGTH) {
+            this.out.println("Please enter a name of at most " + MAX_NAME_LENGTH + " characters:");
+            return false;
+        }
+
+        this.name = line;
+        this.resumeAfter = resumeAfter;
+        return true;
+    }
+
+    // Adds the named client to the server's default room and greets it, the whole greeting going out as one frame
+    private void join() {
+        this.writer.beginBatch();
+        try {
+            System.out.println(this.name + "#" + this.id + " connected to the server on port " + this.hostServer.serverPort + "."); // Informs the server
+
+            // Add to the list of connected clients, and to the members of the default room
+            this.room = this.hostServer.lobby;
+            this.hostServer.clientConnections.add(this);
+            this.hostServer.directory.joined(this.numericId, this.name);
+
+            // Binary clients learn their id from a frame rather than from the welcome text
+            if (this.binary) {
+                this.send(BinaryProtocol.welcomeFrame(Integer.parseInt(this.id), this.name));
+            }
+
+            // Prints the current server chat history
+            this.room.addMember(this, this::replayHistory);
+            this.hostServer.cluster.userJoined(this);
+            this.startIdleTimeout();
+            this.out.println();
+
+            // Welcome message
+            this.out.println("Welcome " + this.name + "#" + this.id + " to the chat room! You are currently connected to port " + this.hostServer.serverPort + ".");
+            this.out.println("You are in room " + this.room.name + ". Type /join room to move to another room.");
+            this.out.println("Type /commands to view all commands in the chat room.");
+            this.out.println();
+
+            // Print all other clients in the chat room to the new client
+            this.printOtherConnectedClients();
+            this.out.println();
+            this.out.println("You can start chatting by typing a message and pressing enter");
+        } finally {
+            this.writer.endBatch();
+        }
+    }
+
+    // Listens for client message until the stream ends or fails
+    private void listenForClientMessage() {
+        String messageFromClient;
+
+        try {
+            while ((messageFromClient = this.in.readLine()) != null) {
+                this.handleClientMessage(messageFromClient);
+                this.waitOffThrottle();
+            }
+        } catch (SocketTimeoutException e) {
+            this.timeOut();
+            return;
+        } catch (LineReader.LineTooLongException e) {
+            this.lineTooLong();
+            return;
+        } catch (IOException e) {
+            // Client left the server triggered by IO stream throwing errors
+        }
+        this.disconnect();
+    }
+
+    // Disconnects a client that sent a line longer than the limit, as the NIO engine does
+    private void lineTooLong() {
+        System.err.println("Line too long from " + this.name + "#" + this.id + ", closing connection.");
+        this.disconnect();
+    }
+
+    // Listens for frames of a binary client until the stream ends or fails
+    private void listenForClientFrames(DataInputStream input) {
+        try {
+            byte[] magic = new byte[BinaryProtocol.MAGIC.length];
+            input.readFully(magic);
+            if (!Arrays.equals(magic, BinaryProtocol.MAGIC)) {
+                throw new IOException("Unsupported protocol version.");
+            }
+            this.startBinary();
+
+            ByteBuffer frame;
+            while ((frame = BinaryProtocol.readFrame(input, BinaryProtocol.MAX_CLIENT_FRAME_LENGTH)) != null) {
+                this.handleFrame(frame);
+                this.waitOffThrottle();
+            }
+        } catch (SocketTimeoutException e) {
+            this.timeOut();
+            return;
+        } catch (IOException e) {
+            // Client left the server, or sent something that is not a valid frame
+        }
+        this.disconnect();
+    }
+
+    // Handles one command or chat message sent by the client. The response is batched into one frame
+    private void handleClientMessage(String messageFromClient) {
+        this.writer.beginBatch();
+        try {
+            messageFromClient = messageFromClient.trim(); // Ensures no leading or trailing whitespaces
+
+            // Command messages
+            if (messageFromClient.startsWith("/")) {
+                int nameEnd = messageFromClient.indexOf(' ');
+                if (nameEnd < 0) {
+                    nameEnd = messageFromClient.length();
                 }
-            } catch (IOException e) {
-                // Client left the server triggered by IO stream throwing errors
-                System.out.println(this.name + "#" + this.id + " left the server on port " + this.hostServer.serverPort + "."); // Informs the server
+                CommandRegistry.Command command = this.hostServer.commands.find(messageFromClient, nameEnd);
+                String args = messageFromClient.substring(nameEnd).trim();
+                long start = System.nanoTime();
+
+                // Private messages count as messages, not commands
+                if (!this.admit(command == null || !command.message)) {
+                    return;
+                }
+
+                if (command != null) {
+                    command.handler.handle(this, args);
+                }
+                else {
+                    this.out.println("Unknown command. Type /commands for available commands.");
+                }
+                this.hostServer.metrics.recordCommand(command, System.nanoTime() - start);
+            }
+            // Normal messages
+            else if (!messageFromClient.isEmpty()){
+                if (this.admit(false)) {
+                    Message msg = new Message(messageFromClient, this);
+                    this.room.broadcast(msg);
+                }
+            }
+            else {
+                this.out.println("Please send a non-empty message.");
+            }
+        } finally {
+            this.writer.endBatch();
+        }
+    }
+
+    // Applies the client's and its room's rate limits to a message or command, returns whether to handle it.
+    // Under THROTTLE everything is handled, but reading stops until the client is back within its limits
+    private boolean admit(boolean command) {
+        RateLimiter own = (command ? this.commandLimiter : this.messageLimiter);
+        RateLimiter shared = (command ? this.room.commandLimiter : this.room.messageLimiter);
+        String kind = (command ? "commands" : "messages");
+        ServerConfig.RateLimitPolicy policy = this.hostServer.config.rateLimitPolicy;
+
+        if (policy == ServerConfig.RateLimitPolicy.THROTTLE) {
+            long wait = Math.max(own.acquire(), shared.acquire());
+            if (wait > 0) {
+                this.hostServer.metrics.rateLimited.increment();
+                this.throttle(wait);
+            }
+            return true;
+        }
+
+        if (!own.tryAcquire()) {
+            this.hostServer.metrics.rateLimited.increment();
+
+            if (policy == ServerConfig.RateLimitPolicy.DISCONNECT) {
+                System.out.println(this.name + "#" + this.id + " is sending " + kind + " too fast and is being disconnected.");
+                this.out.println("You are sending " + kind + " too fast and are being disconnected.");
+                this.disconnectAfterNotice();
+            }
+            else {
+                this.warnOverLimit("You are sending " + kind + " too fast, some were dropped.");
+            }
+            return false;
+        }
+
+        // The room's limit is everyone's, so going over it is never a reason to disconnect
+        if (!shared.tryAcquire()) {
+            this.hostServer.metrics.rateLimited.increment();
+            this.warnOverLimit("Room " + this.room.name + " is receiving too many " + kind + ", some of yours were dropped.");
+            return false;
+        }
+
+        this.warnedOverLimit = false;
+        return true;
+    }
+
+    private void warnOverLimit(String warning) {
+        if (!this.warnedOverLimit) {
+            this.warnedOverLimit = true;
+            this.out.println(warning);
+        }
+    }
+
+    // Stops reading from the client for the given time
+    private void throttle(long nanos) {
+        if (this.nioConnection != null) {
+            this.nioConnection.pauseReading(nanos);
+        }
+        else {
+            this.throttleNanos = Math.max(this.throttleNanos, nanos);
+        }
+    }
+
+    // Blocking engines: waits before reading the next line or frame if the client went over its limits
+    private void waitOffThrottle() {
+        if (this.throttleNanos > 0) {
+            long nanos = this.throttleNanos;
+            this.throttleNanos = 0;
+            LockSupport.parkNanos(nanos);
+        }
+    }
 
-                // Broadcast the client leaving to all other clients
-                this.hostServer.broadcastServerMessage(this.name + "#" + this.id + " has left the chat room.");
-                this.close();
+    // Removes a client that left the server and informs everyone else
+    protected void disconnect() {
+        // Clients that never entered a name were never announced,
+        // and only the thread that actually removes the client announces it
+        if (this.name != null && this.hostServer.clientConnections.remove(this)) {
+            System.out.println(this.name + "#" + this.id + " left the server on port " + this.hostServer.serverPort + "."); // Informs the server
+
+            // Broadcast the client leaving to all other clients of its room, unless they are all being closed too
+            // (the other nodes drop this node's users once its links close)
+            Room room = this.room;
+            room.removeMember(this);
+            this.hostServer.privateMessages.release(this.id);
+            this.hostServer.directory.left(this.numericId, this.name);
+            if (!this.hostServer.closing) {
+                room.broadcastServerMessage(this.name + "#" + this.id + " has left the chat room.");
+                this.hostServer.cluster.userLeft(this);
             }
-        });
+        }
+
+        this.close();
+    }
+
+    // Sends what the client was just told before disconnecting it, closing right away would drop it. The blocking
+    // engines' writer task gets a moment to write it
+    private void disconnectAfterNotice() {
+        this.writer.sendPending();
+        if (this.nioConnection != null) {
+            this.nioConnection.flushWrites();
+        }
+        else {
+            this.awaitDrained(System.nanoTime() + NOTICE_DRAIN_NANOS);
+        }
+        this.disconnect();
+    }
+
+    // Disconnects a client that sent nothing in time: its name during the handshake, or anything once joined
+    protected void timeOut() {
+        if (this.room == null) {
+            this.out.println("No name received in time, closing the connection.");
+        }
+        else {
+            System.out.println(this.name + "#" + this.id + " has been idle for too long and is being disconnected.");
+            this.out.println("You have been idle for too long and are being disconnected. Send /ping to stay connected while idle.");
+        }
+        this.disconnectAfterNotice();
+    }
+
+    // Once joined, the blocking engines' reads time out after the idle timeout instead of the handshake one
+    private void startIdleTimeout() {
+        if (this.clientSocket == null) {
+            return;
+        }
+
+        try {
+            this.clientSocket.setSoTimeout(timeoutMillis(this.hostServer.config.idleTimeoutSeconds));
+        } catch (IOException e) {
+            // The socket is already closed, the reader finds out
+        }
+    }
+
+    // Waits until everything queued to the client was written, at most until the deadline (System.nanoTime)
+    protected void awaitDrained(long deadline) {
+        while (!this.outbound.idle() && deadline - System.nanoTime() > 0) {
+            LockSupport.parkNanos(DRAIN_POLL_NANOS);
+        }
+    }
+
+    // Closes the connection of a shutting down server from the server's thread. Its reader (or event loop) then
+    // ends it as if the client had left
+    protected void closeForShutdown() {
+        if (this.nioConnection != null) {
+            this.nioConnection.disconnectLater();
+        }
+        else if (this.clientSocket != null) {
+            try {
+                this.clientSocket.close();
+            } catch (IOException e) {
+                System.err.println("An error occurred when attempting to close client " + this.name + "#" + this.id + ".");
+            }
+        }
+        else {
+            this.disconnect(); // No socket, nothing else would
+        }
+    }
+
+    private static int timeoutMillis(int seconds) {
+        return (int) Math.min(Integer.MAX_VALUE, TimeUnit.SECONDS.toMillis(seconds));
+    }
+
+    // Registers the built-in commands, in the order /commands lists them
+    protected static void registerCommands(CommandRegistry commands) {
+        commands.register("commands", null, false, (c, args) -> c.printCommandsList());
+        commands.register("current-server", "/current-server || Shows the current server port you are connected to.", false,
+                (c, args) -> c.out.println("You are currently connected to server on port: " + c.hostServer.serverPort));
+        commands.register("users-list", "/users-list [name] || Shows the users in your room, or those whose name starts with name.", false,
+                ClientConnection::printRoomUsers);
+        commands.register("join", "/join room || Moves you to the given room, creating it if needed.", false, ClientConnection::joinRoom);
+        commands.register("rooms", "/rooms || Shows all rooms and how many users are in each.", false, (c, args) -> c.printRooms());
+        commands.register("msg", "/msg name#id message || Sends a private message to user with given id.", true,
+                ClientConnection::sendPrivateMessage);
+        commands.register("search", "/search keyword || Searches for all messages or users by specified keyword.", false,
+                ClientConnection::searchForMessage);
+        commands.register("print-receivers", "/print-receivers message || Prints all receiver of specified message, or of the message with the given #id.", false,
+                ClientConnection::printMessageReceivers);
+        commands.register("history", "/history [before-id] [count] || Shows older messages of the chat room, before the given message id.", false,
+                ClientConnection::printOlderHistory);
+        commands.register("ping", "/ping || Does nothing, keeps the connection open while idle.", false, (c, args) -> {});
+        commands.register("compress", "/compress [on|off] || Compresses history and long responses, for clients that support it.", false,
+                (c, args) -> {
+                    if (c.setCompression(args)) {
+                        c.out.println("Compression is " + (c.compress ? "on" : "off") + ".");
+                    }
+                });
+        commands.register("stats", "/stats || Shows the server's statistics: users, messages, traffic, latencies and queues.", false,
+                (c, args) -> c.printStats());
     }
 
     // Helper functions for command purposes
     private void printCommandsList() {
         this.out.println("Here is the list of all commands:");
 
-        for (String cmd : this.hostServer.commands) {
-            this.out.println("- " + cmd);
+        for (String usage : this.hostServer.commands.usages()) {
+            this.out.println("- " + usage);
         }
     }
 
+    // Lists the users of the room (the client included), also those connected to other nodes of the cluster
     private void printOtherConnectedClients() {
-        if (this.hostServer.clientConnections.size() == 1) {
-            this.out.println("You are the only user currently connected to the chat room.");
+        this.printRoomUsers("");
+    }
+
+    // Lists the room's users from its roster, a page at most: /users-list [prefix]
+    private void printRoomUsers(String prefix) {
+        Roster roster = this.room.roster;
+
+        if (prefix.isEmpty()) {
+            int users = roster.size();
+
+            if (users <= 1) {
+                this.out.println("You are the only user currently in room " + this.room.name + ".");
+                return;
+            }
+
+            this.out.println("You are currently in room " + this.room.name + " with " + (users - 1) + " other user(s), all " + users + " users of the room:");
+            this.out.print(roster.firstPage());
+
+            if (users > Roster.PAGE_SIZE) {
+                this.out.println("... and " + (users - Roster.PAGE_SIZE) + " more. Type /users-list name to list the users whose name starts with name.");
+            }
+            return;
+        }
+
+        int matches = roster.countWithPrefix(prefix);
+        if (matches == 0) {
+            this.out.println("No user in room " + this.room.name + " has a name starting with \"" + prefix + "\".");
+            return;
+        }
+
+        this.out.println(matches + " user(s) in room " + this.room.name + " with a name starting with \"" + prefix + "\":");
+        this.out.print(roster.withPrefix(prefix));
+
+        if (matches > Roster.PAGE_SIZE) {
+            this.out.println("... and " + (matches - Roster.PAGE_SIZE) + " more. Type a longer name to narrow the list down.");
+        }
+    }
+
+    // Moves the client to another room: /join room
+    private void joinRoom(String args) {
+        String roomName = args.toLowerCase();
+
+        if (!Room.isValidName(roomName)) {
+            this.out.println("Invalid room name. Please use 1 to 32 letters, digits, '-' or '_': /join room");
+            return;
+        }
+        if (roomName.equals(this.room.name)) {
+            this.out.println("You are already in room " + roomName + ".");
+            return;
+        }
+
+        Room previous = this.room;
+        Room next = this.hostServer.room(roomName);
+
+        previous.removeMember(this);
+        previous.broadcastServerMessage(this.name + "#" + this.id + " has moved to room " + next.name + ".");
+        next.broadcastServerMessage(this.name + "#" + this.id + " has joined the room.");
+
+        // The history is replayed as the client becomes a member, so no message is missed or shown twice
+        this.room = next;
+        next.addMember(this, this::replayHistory);
+        this.hostServer.cluster.userMoved(this, next);
+        this.out.println();
+        this.printOtherConnectedClients();
+    }
+
+    // The statistics tell about every user's traffic, so only clients on the server's own machine get them unless
+    // the server is started with chatroom.stats.remote=true. Remote monitoring can use the JMX MBean instead
+    private void printStats() {
+        if (!this.hostServer.config.remoteStats && !this.isLocal()) {
+            this.out.println("Statistics are only shown to clients on the server's machine.");
+            return;
+        }
+
+        for (String line : this.hostServer.metrics.dump()) {
+            this.out.println(line);
+        }
+    }
+
+    // Whether the client connects from the server's own machine, socketless clients are part of the server
+    private boolean isLocal() {
+        if (this.clientSocket != null) {
+            return this.clientSocket.getInetAddress().isLoopbackAddress();
+        }
+        if (this.nioConnection != null) {
+            return this.nioConnection.isLocal();
+        }
+        return true;
+    }
+
+    private void printRooms() {
+        this.out.println("Rooms on this server:");
+
+        for (Room room : new TreeMap<>(this.hostServer.rooms).values()) {
+            this.out.println("- " + room.name + " (" + room.members.size() + " user(s))" + (room == this.room ? " <- you are here" : ""));
+        }
+    }
+
+    // Applies an option sent before the name, only "/compress [on|off]" for now. Returns false if the line is not one
+    private boolean acceptOption(String line) {
+        if (!line.regionMatches(true, 0, "/compress", 0, 9) || (line.length() > 9 && line.charAt(9) != ' ')) {
+            return false;
+        }
+
+        this.setCompression(line.substring(9).trim());
+        return true;
+    }
+
+    // Turns compression of bulk payloads (history replays, long responses) on or off: /compress [on|off]. Only for
+    // clients able to expand COMPRESSED frames, like Client
+    private boolean setCompression(String args) {
+        boolean compress;
+        if (args.isEmpty() || args.equalsIgnoreCase("on")) {
+            compress = true;
+        }
+        else if (args.equalsIgnoreCase("off")) {
+            compress = false;
         }
         else {
-            this.out.println("You are currently connected with " + (this.hostServer.clientConnections.size() - 1) + " other user(s):");
+            this.out.println("Invalid format. Please use: /compress [on|off]");
+            return false;
+        }
 
-            for (ClientConnection c : this.hostServer.clientConnections) {
-                if (c != this) {
-                    this.out.println("- " + c.name + "#" + c.id);
-                }
+        this.compress = compress;
+        this.writer.compress = compress;
+        return true;
+    }
+
+    // Replays the history to a client becoming a member of its room (see Room.addMember). Batched text is queued
+    // right away, so the messages broadcast once it is a member come after the whole replay
+    private void replayHistory() {
+        this.printChatHistory();
+        this.writer.sendPending();
+    }
+
+    // Replays the last messages to a joining client, or only those it missed if it is resuming
+    private void printChatHistory() {
+        if (this.resumeAfter >= 0) {
+            this.printMissedHistory();
+            return;
+        }
+
+        HistoryStore.Replay history = this.room.history.replay(0, Long.MAX_VALUE, this.hostServer.config.historyOnJoin, this.binary, this.compress);
+
+        // Everything from the oldest replayed message on counts as seen by this client
+        this.historyCursor = (history.count == 0 ? this.room.history.firstId() : history.firstId);
+
+        if (history.count > 0) {
+            String footer = null;
+            if (this.room.history.firstId() < this.historyCursor) {
+                footer = "Only the last " + history.count + " message(s) are shown. Type /history to see older ones.";
             }
+
+            this.sendHistory("Past messages in room " + this.room.name + ":", history, footer);
         }
     }
 
-    private void printChatHistory() {
-        if (!this.hostServer.messages.isEmpty()) {
-            this.out.println("Past messages in the chat room:");
+    // Replays the messages sent since the last one a reconnecting client had seen (once, on its first join), up to
+    // a page of them
+    private void printMissedHistory() {
+        long lastSeenId = this.resumeAfter;
+        this.resumeAfter = -1;
+
+        HistoryStore.Replay history = this.room.history.replay(lastSeenId + 1, Long.MAX_VALUE, MAX_HISTORY_PAGE, this.binary, this.compress);
+        this.historyCursor = (history.count == 0 ? this.room.history.firstId() : history.firstId);
+
+        if (history.count == 0) {
+            this.out.println("No new messages in room " + this.room.name + " since #" + lastSeenId + ".");
+            return;
+        }
+
+        String footer = null;
+        if (this.room.history.count(lastSeenId + 1, this.historyCursor) > 0) {
+            footer = "Only the last " + history.count + " message(s) are shown. Type /history to see older ones.";
+        }
+
+        this.sendHistory(history.count + " new message(s) in room " + this.room.name + " since #" + lastSeenId + ":", history, footer);
+    }
+
+    // Pages further back in the history: /history [before-id] [count]
+    private void printOlderHistory(String args) {
+        long beforeId = this.historyCursor;
+        int count = Math.max(1, this.hostServer.config.historyOnJoin);
+
+        try {
+            String[] argParts = WHITESPACE.split(args);
+            if (!args.isEmpty()) {
+                beforeId = Long.parseLong(argParts[0]);
+            }
+            if (argParts.length > 1) {
+                count = Integer.parseInt(argParts[1]);
+            }
+        } catch (NumberFormatException e) {
+            this.out.println("Invalid format. Please use: /history [before-id] [count]");
+            return;
+        }
+
+        count = Math.max(1, Math.min(count, MAX_HISTORY_PAGE));
+        HistoryStore.Replay history = this.room.history.replay(0, beforeId, count, this.binary, this.compress);
+
+        if (history.count == 0) {
+            this.out.println("No older message(s) found.");
+            return;
+        }
+
+        // Paged messages count as seen too, e.g. for /search
+        long oldestId = history.firstId;
+        this.historyCursor = Math.min(this.historyCursor, oldestId);
+
+        String footer = null;
+        if (this.room.history.firstId() < oldestId) {
+            footer = "Type /history " + oldestId + " to see older messages.";
+        }
+
+        this.sendHistory("Messages before #" + beforeId + ":", history, footer);
+    }
 
-            for (Message msg : this.hostServer.messages) {
-                this.messages.add(msg);
-                this.out.println(msg.sentTime + " " + msg.sender.name + "#" + msg.sender.id + ": " + msg.content);
+    // Sends a header, the history's frames and an optional footer as one batch, so they go out in as few writes as
+    // the outbound queue allows. The history's frames (compressed or not) are shared with other clients and queued
+    // as they are
+    private void sendHistory(String header, HistoryStore.Replay history, String footer) {
+        this.writer.beginBatch();
+        try {
+            this.out.println(header);
+            for (byte[] frames : history.frames) {
+                this.send(frames);
+            }
+            if (footer != null) {
+                this.out.println(footer);
             }
+        } finally {
+            this.writer.endBatch();
+        }
+    }
+
+    // Messages this client has seen: public ones since it joined and its private conversations, oldest first
+    private List<Message> visibleMessages() {
+        List<Message> visible = this.room.history.since(this.historyCursor);
+        List<Message> privateMessages = this.hostServer.privateMessages.of(this.id);
+
+        if (!privateMessages.isEmpty()) {
+            visible.addAll(privateMessages);
+            visible.sort(Comparator.comparingLong(msg -> msg.id));
         }
+        return visible;
     }
 
     private void sendPrivateMessage(String args) {
@@ -172,64 +950,141 @@ public class ClientConnection implements Runnable {
             return;
         }
 
-        // Pattern to catch "name#id message"
-        Pattern pattern = Pattern.compile("(.+?#\\d++)\\s+(.+)"); // (Any char#digits) whitespaces (message)
-        Matcher matcher = pattern.matcher(args);
+        // "name#id message": the target ends at the first '#' followed by digits and a whitespace
+        int hash = 0; // The name has at least one character
+        int idEnd = -1;
+        while ((hash = args.indexOf('#', hash + 1)) > 0) {
+            idEnd = hash + 1;
+            while (idEnd < args.length() && args.charAt(idEnd) >= '0' && args.charAt(idEnd) <= '9') {
+                idEnd++;
+            }
+            if (idEnd > hash + 1 && idEnd < args.length() && Character.isWhitespace(args.charAt(idEnd))) {
+                break;
+            }
+        }
 
-        if (!matcher.matches()) {
+        if (hash < 0) {
             this.out.println("Invalid format. Please use: /msg name#id message");
             return;
         }
 
-        String userInfo = matcher.group(1).trim();
-        String messageToSend = matcher.group(2).trim();
+        int nameEnd = hash;
+        while (Character.isWhitespace(args.charAt(nameEnd - 1))) {
+            nameEnd--;
+        }
+        String messageToSend = args.substring(idEnd).trim();
 
-        String[] userInfoParts = userInfo.split("#", 2);
-        String username = userInfoParts[0].trim().toLowerCase();
-        String userId = userInfoParts[1].trim();
+        // Constant time lookup by numeric id (see ConnectionRegistry), then the typed name and id must match the user's
+        ClientConnection c = null;
+        ClusterNode.RemoteUser remote = null;
+        int userId = parseId(args, hash + 1, idEnd);
 
-        for (ClientConnection c : this.hostServer.clientConnections) {
-            if (c.name.toLowerCase().equals(username) && c.id.equals(userId)) {
-                if (c == this) {
-                    this.out.println("You cannot send a private message to yourself.");
-                }
-                else {
-                    this.hostServer.sendPrivateMessage(new Message(messageToSend, this), c);
+        if (userId >= 0) {
+            c = this.hostServer.clientConnections.get(userId);
+            if (c != null && !(isUser(args, nameEnd, c.name) && isId(args, hash + 1, idEnd, c.id))) {
+                c = null;
+            }
+            if (c == null) {
+                remote = this.hostServer.cluster.get(userId);
+                if (remote != null && !(isUser(args, nameEnd, remote.name) && isId(args, hash + 1, idEnd, remote.userId()))) {
+                    remote = null;
                 }
+            }
+        }
 
-                return;
+        String userInfo = (c == null && remote == null ? args.substring(0, idEnd) : null); // Only shown if not found
+        this.sendPrivateMessage(c, remote, userInfo, messageToSend);
+    }
+
+    // The digits args[from, to) as a number, -1 if too large to be an id
+    private static int parseId(String args, int from, int to) {
+        long id = 0;
+        for (int i = from; i < to; i++) {
+            id = id * 10 + (args.charAt(i) - '0');
+            if (id > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return (int) id;
+    }
+
+    // Whether text is only ASCII digits from index from on
+    private static boolean isDigits(String text, int from) {
+        for (int i = from; i < text.length(); i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') {
+                return false;
             }
         }
+        return true;
+    }
 
-        this.out.println("User " + userInfo + " not found. Please specify a valid user.");
+    // Whether args[0, end) is the name, ignoring case
+    private static boolean isUser(String args, int end, String name) {
+        return end == name.length() && args.regionMatches(true, 0, name, 0, end);
+    }
+
+    // Whether args[from, to) is the id as written (zero padded)
+    private static boolean isId(String args, int from, int to, String id) {
+        return to - from == id.length() && args.regionMatches(from, id, 0, id.length());
+    }
+
+    // Sends a private message to a client looked up from userInfo, either connected here (c) or to another node of
+    // the cluster (remote), both null if there is no such client
+    private void sendPrivateMessage(ClientConnection c, ClusterNode.RemoteUser remote, String userInfo, String messageToSend) {
+        if (messageToSend.isEmpty()) {
+            this.out.println("Please send a non-empty message.");
+        }
+        else if (c == null && remote == null) {
+            this.out.println("User " + userInfo + " not found. Please specify a valid user.");
+        }
+        else if (c == this) {
+            this.out.println("You cannot send a private message to yourself.");
+        }
+        else if (c != null) {
+            this.hostServer.sendPrivateMessage(new Message(messageToSend, this), c);
+        }
+        else {
+            this.hostServer.sendRemotePrivateMessage(new Message(messageToSend, this), remote);
+        }
     }
 
     private void searchForMessage (String args) {
-        String keyword = args.toLowerCase();
+        String[] queryTokens = SearchIndex.tokenize(args);
 
         // If empty keyword then it's invalid
-        if (keyword.isEmpty()) {
+        if (queryTokens.length == 0) {
             this.out.println("Empty keyword to search. Please specify a valid keyword.");
             return;
         }
 
-        int foundMessages = 0;
+        int limit = this.hostServer.config.searchMaxResults;
 
-        // Iterates through the client stored message
-        for (Message msg : this.messages) {
-            // If the message or its sender contains the keyword
-            if (msg.content.toLowerCase().contains(keyword) || msg.sender.name.toLowerCase().contains(keyword)) {
-                this.out.println("- \"" + msg.content + "\"" + " by " + msg.sender.name + "#" + msg.sender.id + " at " + msg.sentTime);
-                foundMessages++;
+        // Public messages seen by the client come from the index, its private conversations are scanned
+        List<Message> found = this.room.history.search(queryTokens, this.historyCursor, limit + 1);
+        for (Message msg : this.hostServer.privateMessages.of(this.id)) {
+            if (SearchIndex.matches(msg, queryTokens)) {
+                found.add(msg);
             }
         }
+        found.sort(Comparator.comparingLong(msg -> msg.id));
 
         // If no found messages from the specified keyword
-        if (foundMessages == 0) {
+        if (found.isEmpty()) {
             this.out.println("No message(s) found.");
+            return;
+        }
+
+        int from = Math.max(0, found.size() - limit);
+        for (Message msg : found.subList(from, found.size())) {
+            this.out.println("- #" + msg.id + " \"" + msg.content + "\"" + " by " + msg.senderName + "#" + msg.senderId + " at " + msg.sentTime());
+        }
+
+        if (found.size() > limit) {
+            this.out.println("Showing the " + limit + " most recent matches only.");
         }
     }
 
+    // Accepts either the message content or its id, e.g. /print-receivers #42 as shown by /search
     private void printMessageReceivers (String args) {
         String targetMessage = args.toLowerCase();
 
@@ -239,20 +1094,28 @@ public class ClientConnection implements Runnable {
             return;
         }
 
+        long targetId = -1;
+        if (targetMessage.length() > 1 && targetMessage.length() <= 19 && targetMessage.charAt(0) == '#' && isDigits(targetMessage, 1)) {
+            targetId = Long.parseLong(targetMessage, 1, targetMessage.length(), 10);
+        }
+
         int foundMessages = 0;
 
-        // Iterates through the client stored message
-        for (Message msg : this.messages) {
+        // Iterates through the messages seen by the client
+        for (Message msg : this.visibleMessages()) {
+            boolean target = (targetId >= 0 ? msg.id == targetId : msg.content.toLowerCase().equals(targetMessage));
+
             // Checks if the message was sent by this client and is the target message
-            if (msg.sender != null && msg.sender.equals(this) && msg.content.toLowerCase().equals(targetMessage)) {
+            if (msg.sender != null && msg.sender.equals(this) && target) {
                 if (msg.receivers.isEmpty()) {
-                    this.out.println("Your message \"" + msg.content + "\" sent at " + msg.sentTime + " was received by nobody.");
+                    this.out.println("Your message #" + msg.id + " \"" + msg.content + "\" sent at " + msg.sentTime() + " was received by nobody.");
                 }
                 else {
-                    this.out.println("Your message \"" + msg.content + "\" sent at " + msg.sentTime + " was received by:");
+                    this.out.println("Your message #" + msg.id + " \"" + msg.content + "\" sent at " + msg.sentTime() + " was received by:");
 
-                    for (ClientConnection c : msg.receivers) {
-                        this.out.println("- " + c.name + "#" + c.id);
+                    // Names are only resolved here, receivers are kept as ids
+                    for (int receiverId : msg.receivers.toArray()) {
+                        this.out.println("- " + this.hostServer.directory.describe(receiverId));
                     }
                 }
 
@@ -266,18 +1129,30 @@ public class ClientConnection implements Runnable {
         }
     }
 
-    // Closes the ClientConnection
+    // Releases the connection, whichever of its threads gets here first
     private void close() {
-        try {
-            if (this.clientSocket != null && !this.clientSocket.isClosed()) {
-                this.hostServer.clientConnections.remove(this);
-                this.clientSocket.close();
-                this.threadPool.shutdown();
-                this.in.close();
-                this.out.close();
+        if (!this.closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        this.hostServer.openConnections.remove(this);
+        this.hostServer.clientConnections.remove(this);
+        if (this.room != null) {
+            this.room.removeMember(this);
+        }
+        if (this.outbound != null) { // Not created if the socket failed right away
+            this.outbound.clear();
+        }
+
+        if (this.nioConnection != null) {
+            this.nioConnection.close();
+        }
+        else if (this.clientSocket != null) {
+            try {
+                this.clientSocket.close(); // Also closes in, and out's writer task fails and stops
+            } catch (IOException e) {
+                System.err.println("An error occurred when attempting to close client " + this.name + "#" + this.id + ".");
             }
-        } catch (IOException e) {
-            System.err.println("An error occurred when attempting to close client " + this.name + "#" + this.id + ".");
         }
     }
 }
\ No newline at end of file
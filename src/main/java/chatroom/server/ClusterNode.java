@@ -0,0 +1,493 @@
+package chatroom.server;
+
+import chatroom.objects.Message;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Links a server to the other nodes of a cluster, so rooms span several server processes. Every node opens a
+// link to each of its peers and only sends on the links it opened, receiving on the ones it accepted. Over its
+// links a node announces its users (joining, leaving, moving between rooms) and relays the public messages
+// sent in its rooms and the private messages for users of other nodes. Nothing is forwarded further, so the
+// peers of each node should list all the other nodes.
+//
+// Ids stay unique across the cluster: user ids of node n start at n * NODE_ID_STRIDE, and relayed messages carry
+// an origin id (origin node in the high bits, its local message id in the low bits) which receivers dedupe on.
+// Relayed messages get a local id when stored, so every node's history keeps increasing ids.
+//
+// Link format: a HELLO with the node id, then frames of a type byte followed by its fields. Strings are
+// an int length and UTF-8 bytes.
+//   HELLO       int nodeId
+//   USER_JOINED int userId | string name | string room
+//   USER_LEFT   int userId
+//   USER_MOVED  int userId | string room
+//   CHAT        long originId | string room | long sentAt | string senderName | string senderId | string content
+//   PRIVATE     long originId | int receiverId | long sentAt | string senderName | string senderId | string content
+public class ClusterNode {
+    public static final int NODE_ID_STRIDE = 1_000_000;
+    private static final int ORIGIN_SHIFT = 48;
+    private static final int PEER_QUEUE_CAPACITY = 65536;
+    private static final int MAX_SEEN = 65536;
+    private static final long RECONNECT_MILLIS = 1000;
+
+    private static final byte HELLO = 1;
+    private static final byte USER_JOINED = 2;
+    private static final byte USER_LEFT = 3;
+    private static final byte USER_MOVED = 4;
+    private static final byte CHAT = 5;
+    private static final byte PRIVATE = 6;
+
+    private final Server server;
+    private final int nodeId;
+    private final int port;
+    private final List<Peer> peers = new ArrayList<>();
+    private final ConcurrentHashMap<Integer, RemoteUser> remoteUsers = new ConcurrentHashMap<>();
+    private final Set<Socket> links = ConcurrentHashMap.newKeySet(); // Accepted from peers, closed on shutdown
+    private final Map<Long, Boolean> seen = new LinkedHashMap<>() { // Origin ids of received messages, guarded by itself
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return this.size() > MAX_SEEN;
+        }
+    };
+    private ServerSocket listener;
+    private volatile boolean running;
+
+    public ClusterNode(Server server, ServerConfig config) {
+        this.server = server;
+        this.nodeId = config.clusterNodeId;
+        this.port = config.clusterPort;
+
+        for (String address : config.clusterPeers) {
+            int separator = address.lastIndexOf(':');
+            try {
+                this.peers.add(new Peer(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1))));
+            } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                System.err.println("Invalid cluster peer \"" + address + "\", expected host:port.");
+            }
+        }
+    }
+
+    // A server without a cluster port runs on its own, and every method here does nothing
+    public boolean enabled() {
+        return this.port > 0;
+    }
+
+    // Starts listening for peers and connecting to them
+    public void start() throws IOException {
+        if (!this.enabled()) {
+            return;
+        }
+
+        this.listener = new ServerSocket(this.port);
+        this.running = true;
+        startThread(this::acceptPeers, "chatroom-cluster-listener");
+
+        for (Peer peer : this.peers) {
+            peer.thread = startThread(peer, "chatroom-cluster-peer-" + peer.host + ":" + peer.port);
+        }
+        System.out.println("Cluster node " + this.nodeId + " listening for peers on port " + this.port + ".");
+    }
+
+    public void close() {
+        this.running = false;
+
+        try {
+            if (this.listener != null) {
+                this.listener.close();
+            }
+        } catch (IOException e) {
+            System.err.println("An error occurred when attempting to close the cluster listener.");
+        }
+
+        for (Peer peer : this.peers) {
+            peer.close();
+        }
+
+        // Ends the receiving threads, blocked reading their link
+        for (Socket socket : this.links) {
+            closeLink(socket);
+        }
+    }
+
+    // Local events, announced to every peer
+
+    public void userJoined(ClientConnection c) {
+        if (!this.peers.isEmpty()) {
+            this.sendToPeers(userJoinedFrame(c));
+        }
+    }
+
+    public void userLeft(ClientConnection c) {
+        if (!this.peers.isEmpty()) {
+            this.sendToPeers(this.frame(USER_LEFT, out -> out.writeInt(c.numericId)));
+        }
+    }
+
+    public void userMoved(ClientConnection c, Room room) {
+        if (!this.peers.isEmpty()) {
+            this.sendToPeers(this.frame(USER_MOVED, out -> {
+                out.writeInt(c.numericId);
+                writeString(out, room.name);
+            }));
+        }
+    }
+
+    // Relays a public message sent by a local client, after it got its id
+    public void relayChat(Message msg) {
+        if (!this.peers.isEmpty()) {
+            this.sendToPeers(this.frame(CHAT, out -> {
+                out.writeLong(this.originId(msg));
+                writeString(out, msg.room);
+                out.writeLong(msg.sentAt);
+                writeString(out, msg.senderName);
+                writeString(out, msg.senderId);
+                writeString(out, msg.content);
+            }));
+        }
+    }
+
+    // Relays a private message for a user of another node. Links only go one way, so which peer is that node is
+    // not known here: every peer gets it and the others ignore it
+    public void relayPrivate(Message msg, RemoteUser receiver) {
+        this.sendToPeers(this.frame(PRIVATE, out -> {
+            out.writeLong(this.originId(msg));
+            out.writeInt(receiver.id);
+            out.writeLong(msg.sentAt);
+            writeString(out, msg.senderName);
+            writeString(out, msg.senderId);
+            writeString(out, msg.content);
+        }));
+    }
+
+    // Shared user directory: users connected to other nodes
+
+    public RemoteUser get(int id) {
+        return this.remoteUsers.get(id);
+    }
+
+    private long originId(Message msg) {
+        return ((long) this.nodeId << ORIGIN_SHIFT) | msg.id;
+    }
+
+    private void sendToPeers(byte[] frame) {
+        for (Peer peer : this.peers) {
+            peer.send(frame);
+        }
+    }
+
+    // Remote events, received on the links accepted from peers
+
+    private void acceptPeers() {
+        while (this.running) {
+            try {
+                Socket socket = this.listener.accept();
+                this.links.add(socket);
+
+                // Closed by close() unless it already went through the links
+                if (!this.running) {
+                    this.links.remove(socket);
+                    closeLink(socket);
+                    break;
+                }
+                startThread(() -> this.receive(socket), "chatroom-cluster-link");
+            } catch (IOException e) {
+                if (this.running) {
+                    System.err.println("Failed to accept a cluster peer.");
+                }
+            }
+        }
+    }
+
+    private void receive(Socket socket) {
+        int node = -1;
+
+        try (socket; DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            if (in.readByte() != HELLO) {
+                throw new IOException("Expected HELLO.");
+            }
+            node = in.readInt();
+            if (node == this.nodeId) {
+                System.err.println("Cluster node " + this.nodeId + " is listed as its own peer, ignoring the link.");
+                return;
+            }
+            System.out.println("Cluster node " + node + " connected.");
+
+            while (this.running) {
+                this.handle(node, in.readByte(), in);
+            }
+        } catch (IOException e) {
+            // Link closed, the node is down or restarting
+        } finally {
+            this.links.remove(socket);
+        }
+
+        // Nobody is left to tell on shutdown
+        if (node >= 0 && node != this.nodeId && this.running) {
+            System.out.println("Cluster node " + node + " disconnected.");
+            this.dropUsersOf(node);
+        }
+    }
+
+    private void handle(int node, byte type, DataInputStream in) throws IOException {
+        switch (type) {
+            case USER_JOINED: {
+                int id = in.readInt();
+                String name = readString(in);
+                String room = readString(in);
+                RemoteUser user = new RemoteUser(id, name, node, Room.isValidName(room) ? room : Room.DEFAULT);
+                RemoteUser previous = this.remoteUsers.put(user.id, user);
+                if (previous != null) {
+                    this.server.room(previous.room).roster.remove(previous.name, previous.userId());
+                }
+                this.server.room(user.room).roster.add(user.name, user.userId());
+                this.server.directory.joined(user.id, user.name);
+                break;
+            }
+            case USER_LEFT: {
+                RemoteUser user = this.remoteUsers.remove(in.readInt());
+                if (user != null) {
+                    this.userGone(user);
+                }
+                break;
+            }
+            case USER_MOVED: {
+                RemoteUser user = this.remoteUsers.get(in.readInt());
+                String room = readString(in);
+
+                if (user != null && Room.isValidName(room)) {
+                    String previous = user.room;
+                    user.room = room;
+                    this.server.room(previous).roster.remove(user.name, user.userId());
+                    this.server.room(room).roster.add(user.name, user.userId());
+                    this.server.room(previous).broadcastServerMessage(user.name + "#" + user.userId() + " has moved to room " + room + ".");
+                    this.server.room(room).broadcastServerMessage(user.name + "#" + user.userId() + " has joined the room.");
+                }
+                break;
+            }
+            case CHAT: {
+                long originId = in.readLong();
+                String room = readString(in);
+                long sentAt = in.readLong();
+                String senderName = readString(in);
+                String senderId = readString(in);
+                String content = readString(in);
+
+                if (Room.isValidName(room) && !this.duplicate(originId)) {
+                    this.server.room(room).broadcast(new Message(-1, room, content, sentAt, senderName, senderId));
+                }
+                break;
+            }
+            case PRIVATE: {
+                long originId = in.readLong();
+                ClientConnection receiver = this.server.clientConnections.get(in.readInt());
+                long sentAt = in.readLong();
+                String senderName = readString(in);
+                String senderId = readString(in);
+                String content = readString(in);
+
+                // Sent to every peer, only the node of the receiver delivers it
+                if (receiver != null && !this.duplicate(originId)) {
+                    this.server.deliverRelayedPrivateMessage(new Message(-1, null, content, sentAt, senderName, senderId), receiver);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown cluster frame type " + type + ".");
+        }
+    }
+
+    private void dropUsersOf(int node) {
+        for (RemoteUser user : this.remoteUsers.values()) {
+            if (user.node == node && this.remoteUsers.remove(user.id, user)) {
+                this.userGone(user);
+            }
+        }
+    }
+
+    private void userGone(RemoteUser user) {
+        this.server.room(user.room).roster.remove(user.name, user.userId());
+        this.server.directory.left(user.id, user.name);
+        this.server.privateMessages.release(user.userId());
+        this.server.room(user.room).broadcastServerMessage(user.name + "#" + user.userId() + " has left the chat room.");
+    }
+
+    // Whether a relayed message was already received, e.g. when a node is listed twice as a peer
+    private boolean duplicate(long originId) {
+        synchronized (this.seen) {
+            return this.seen.put(originId, Boolean.TRUE) != null;
+        }
+    }
+
+    // Encoding
+
+    private interface FrameWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private byte[] frame(byte type, FrameWriter writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeByte(type);
+            writer.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Never thrown by a ByteArrayOutputStream
+        }
+        return bytes.toByteArray();
+    }
+
+    private byte[] userJoinedFrame(ClientConnection c) {
+        Room room = c.room;
+        return this.frame(USER_JOINED, out -> {
+            out.writeInt(c.numericId);
+            writeString(out, c.name);
+            writeString(out, room.name);
+        });
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 1024 * 1024) {
+            throw new IOException("Invalid string length " + length + ".");
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Thread startThread(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true); // Server.awaitShutdown keeps the process alive, not the cluster links
+        thread.start();
+        return thread;
+    }
+
+    private static void closeLink(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("An error occurred when attempting to close a link from a cluster peer.");
+        }
+    }
+
+    // User connected to another node of the cluster
+    public static class RemoteUser {
+        protected final int id;
+        protected final String name;
+        protected final int node;
+        protected volatile String room;
+
+        private RemoteUser(int id, String name, int node, String room) {
+            this.id = id;
+            this.name = name;
+            this.node = node;
+            this.room = room;
+        }
+
+        public String userId() {
+            return String.format("%05d", this.id);
+        }
+    }
+
+    // Outgoing link to a peer, with its own writer thread so nobody sending to the cluster waits on the network
+    private class Peer implements Runnable {
+        private final String host;
+        private final int port;
+        private final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(PEER_QUEUE_CAPACITY);
+        private volatile boolean connected;
+        private volatile Socket socket;
+        private volatile Thread thread; // Writer thread, set once started
+
+        private Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        // Frames are only queued while connected, what happens while a peer is down is not replayed
+        private void send(byte[] frame) {
+            if (this.connected && !this.queue.offer(frame)) {
+                System.err.println("Cluster peer " + this.host + ":" + this.port + " cannot keep up, dropping a frame.");
+            }
+        }
+
+        @Override
+        public void run() {
+            while (ClusterNode.this.running) {
+                try (Socket socket = new Socket()) {
+                    this.socket = socket; // Before connecting, so close() also ends a pending connect
+                    if (!ClusterNode.this.running) {
+                        return;
+                    }
+                    socket.connect(new InetSocketAddress(this.host, this.port));
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                    out.writeByte(HELLO);
+                    out.writeInt(ClusterNode.this.nodeId);
+
+                    // Announce the users already connected here, events from now on are queued
+                    this.queue.clear();
+                    this.connected = true;
+                    for (ClientConnection c : ClusterNode.this.server.clientConnections) {
+                        out.write(ClusterNode.this.userJoinedFrame(c));
+                    }
+                    out.flush();
+
+                    List<byte[]> batch = new ArrayList<>();
+                    while (ClusterNode.this.running) {
+                        batch.add(this.queue.take());
+                        this.queue.drainTo(batch);
+                        for (byte[] frame : batch) {
+                            out.write(frame);
+                        }
+                        out.flush();
+                        batch.clear();
+                    }
+                } catch (IOException e) {
+                    // Peer down or not started yet, retried below
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    this.connected = false;
+                }
+
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        // Wakes the writer thread wherever it waits (queue, reconnect delay) and closes its link
+        private void close() {
+            if (this.thread != null) {
+                this.thread.interrupt();
+            }
+
+            try {
+                if (this.socket != null) {
+                    this.socket.close();
+                }
+            } catch (IOException e) {
+                System.err.println("An error occurred when attempting to close the link to cluster peer " + this.host + ":" + this.port + ".");
+            }
+        }
+    }
+}
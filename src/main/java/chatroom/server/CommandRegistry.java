@@ -0,0 +1,78 @@
+package chatroom.server;
+
+import chatroom.objects.LatencyHistogram;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// The "/" commands of a server by lowercase name, each with its handler, usage line and latency histogram.
+// A command line is looked up once and dispatched straight to its handler, so new commands only need registering
+public class CommandRegistry {
+    private final ConcurrentHashMap<String, Command> byName = new ConcurrentHashMap<>();
+    private final List<Command> inOrder = new CopyOnWriteArrayList<>(); // Registration order, as listed by /commands
+
+    // Handles one command for a client, args being the trimmed rest of the line (empty if none)
+    @FunctionalInterface
+    public interface Handler {
+        void handle(ClientConnection client, String args);
+    }
+
+    // Registers a command under its name (case-insensitive), replacing any command of the same name. A null usage
+    // keeps it out of /commands, a message command is rate limited as a message rather than as a command
+    public void register(String name, String usage, boolean message, Handler handler) {
+        Command command = new Command(name.toLowerCase(), usage, message, handler);
+        Command previous = this.byName.put(command.name, command);
+
+        if (previous != null) {
+            this.inOrder.remove(previous);
+        }
+        this.inOrder.add(command);
+    }
+
+    // Finds the command named by line[1, end) (the line starting with "/"), or null if there is none. Only allocates
+    // the name, lowercased only if it is not already
+    public Command find(String line, int end) {
+        String name = line.substring(1, end);
+        Command command = this.byName.get(name);
+
+        if (command == null) {
+            command = this.byName.get(name.toLowerCase());
+        }
+        return command;
+    }
+
+    // Usage lines of the listed commands, in registration order
+    public List<String> usages() {
+        List<String> usages = new ArrayList<>();
+        for (Command command : this.inOrder) {
+            if (command.usage != null) {
+                usages.add(command.usage);
+            }
+        }
+        return usages;
+    }
+
+    // Every command, sorted by name
+    public List<Command> all() {
+        List<Command> commands = new ArrayList<>(this.inOrder);
+        commands.sort(Comparator.comparing(command -> command.name));
+        return commands;
+    }
+
+    public static class Command {
+        protected final String name;
+        protected final String usage;
+        protected final boolean message;
+        protected final Handler handler;
+        protected final LatencyHistogram latency = new LatencyHistogram(); // Time to handle the command
+
+        private Command(String name, String usage, boolean message, Handler handler) {
+            this.name = name;
+            this.usage = usage;
+            this.message = message;
+            this.handler = handler;
+        }
+    }
+}
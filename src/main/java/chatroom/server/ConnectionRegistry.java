@@ -0,0 +1,60 @@
+package chatroom.server;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Thread-safe registry of the clients in the chat room, indexed by id: a hash map for constant time lookups
+// (e.g. /msg), and a sorted map for fan-out. Iterating never throws ConcurrentModificationException: it walks a
+// weakly consistent view in id order, seeing every client that stays connected for the whole iteration
+public class ConnectionRegistry implements Iterable<ClientConnection> {
+    private final ConcurrentHashMap<Integer, ClientConnection> byId = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, ClientConnection> ordered = new ConcurrentSkipListMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    // Adds a client that has a name and id, returns false if it was already registered
+    public boolean add(ClientConnection c) {
+        Integer id = Integer.parseInt(c.id);
+        if (this.byId.putIfAbsent(id, c) != null) {
+            return false;
+        }
+        this.ordered.put(id, c);
+        if (this.byId.get(id) != c) {
+            this.ordered.remove(id, c); // Removed meanwhile, maybe before it was in ordered
+        }
+
+        this.size.incrementAndGet();
+        return true;
+    }
+
+    // Removes a client, returns false if it was not registered (e.g. already removed by another thread)
+    public boolean remove(ClientConnection c) {
+        if (c.id == null) {
+            return false;
+        }
+
+        Integer id = Integer.parseInt(c.id);
+        if (!this.byId.remove(id, c)) {
+            return false;
+        }
+        this.ordered.remove(id, c);
+
+        this.size.decrementAndGet();
+        return true;
+    }
+
+    // Finds a client by its numeric id, or null if not connected
+    public ClientConnection get(int id) {
+        return this.byId.get(id);
+    }
+
+    public int size() {
+        return this.size.get();
+    }
+
+    @Override
+    public Iterator<ClientConnection> iterator() {
+        return this.ordered.values().iterator();
+    }
+}
\ No newline at end of file
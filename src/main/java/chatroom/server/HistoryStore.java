@@ -0,0 +1,486 @@
+package chatroom.server;
+
+import chatroom.objects.Message;
+import chatroom.protocol.Compression;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Public chat history of a room, shared by all its members. A bounded ring buffer that also evicts the oldest
+// messages once over its byte budget or maximum age. Messages get their id when appended, so ids in the ring
+// are always increasing. The ring grows up to its capacity as needed, so quiet rooms stay small.
+// For replays, the messages are also grouped in blocks of BLOCK_MESSAGES, each rendered once (per protocol) into a
+// single array the first time it is replayed, and compressed once for clients that asked for compression. Every
+// client catching up then queues the same arrays, only the partial block at the start of its range and the
+// messages outside full blocks are copied. Those are kept too until a new message arrives, so clients joining in
+// a burst all share the same replay.
+// Renderings count against the byte budget like the messages themselves. A block is dropped with its rendering as
+// soon as its oldest message is evicted, and so are cached replays that include it, so evicted messages are freed
+public class HistoryStore {
+    private static final int MESSAGE_OVERHEAD = 64; // Rough size of a Message object besides its text
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int BLOCK_MESSAGES = 64;
+
+    private final String room;
+    private final int capacity;
+    private Message[] ring;
+    private final long maxBytes;
+    private final long maxAgeMillis; // 0 means messages never expire
+    private final AtomicLong idSource;
+    private final MessageLog log; // Null unless the message log is enabled
+    private final SearchIndex index = new SearchIndex();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private int head; // Index of the oldest message
+    private int size;
+    private long bytes; // Of the retained messages
+    private final AtomicLong renderedBytes = new AtomicLong(); // Of the blocks' renderings, made under the read lock
+    private int evictedSincePrune;
+    private final ArrayDeque<Block> blocks = new ArrayDeque<>(); // Full blocks still holding retained messages, oldest first
+    private Message[] openBlock = new Message[BLOCK_MESSAGES]; // Messages since the last full block
+    private int openSize;
+    private final Replay[] recent = new Replay[4]; // Last replay by protocol and compression, reused while it covers the same messages
+
+    public HistoryStore(String room, ServerConfig config, AtomicLong idSource, MessageLog log) {
+        this.room = room;
+        this.capacity = config.historyMaxMessages;
+        this.ring = new Message[Math.min(INITIAL_CAPACITY, this.capacity)];
+        this.maxBytes = config.historyMaxBytes;
+        this.maxAgeMillis = config.historyMaxAgeSeconds * 1000L;
+        this.idSource = idSource;
+        this.log = log;
+    }
+
+    // Assigns the next id to the message and stores it, evicting old messages as needed
+    public void append(Message msg) {
+        long msgBytes = sizeOf(msg);
+
+        this.lock.writeLock().lock();
+        try {
+            msg.id = this.idSource.getAndIncrement();
+            msg.room = this.room;
+            this.store(msg, msgBytes, msg.sentAt);
+            this.index.add(msg);
+
+            // Queued under the lock so the log is in id order too
+            if (this.log != null) {
+                this.log.append(msg);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    // Loads messages recovered from the message log, which already have their ids, and makes sure new ids
+    // continue after them
+    public void restore(List<Message> messages) {
+        this.lock.writeLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+
+            for (Message msg : messages) {
+                this.store(msg, sizeOf(msg), now);
+                this.index.add(msg);
+                this.idSource.accumulateAndGet(msg.id + 1, Math::max);
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private void store(Message msg, long msgBytes, long now) {
+        if (this.size == this.ring.length) {
+            if (this.ring.length < this.capacity) {
+                this.grow();
+            }
+            else {
+                this.evictOldest();
+            }
+        }
+
+        this.ring[(this.head + this.size) % this.ring.length] = msg;
+        this.size++;
+        this.bytes += msgBytes;
+
+        while (this.size > 1 && (this.bytes + this.renderedBytes.get() > this.maxBytes || this.expired(this.ring[this.head], now))) {
+            this.evictOldest();
+        }
+
+        this.openBlock[this.openSize++] = msg;
+        if (this.openSize == BLOCK_MESSAGES) {
+            this.blocks.addLast(new Block(this.openBlock, this.renderedBytes));
+            this.openBlock = new Message[BLOCK_MESSAGES];
+            this.openSize = 0;
+        }
+
+        // Evicted ids are skipped by searches anyway, so the index is only cleaned up once in a while
+        if (this.evictedSincePrune >= Math.max(1024, this.capacity / 4)) {
+            this.index.prune(this.ring[this.head].id);
+            this.evictedSincePrune = 0;
+        }
+    }
+
+    // Returns the retained messages with an id of at least fromId, oldest first
+    public List<Message> since(long fromId) {
+        this.lock.readLock().lock();
+        try {
+            List<Message> result = new ArrayList<>();
+            long now = System.currentTimeMillis();
+
+            for (int i = this.indexOf(fromId); i < this.size; i++) {
+                Message msg = this.ring[(this.head + i) % this.ring.length];
+                if (!this.expired(msg, now)) {
+                    result.add(msg);
+                }
+            }
+            return result;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    // Frames of the newest retained messages with fromId <= id < toId, at most maxCount of them, oldest first,
+    // compressed where worth it if asked. Full blocks are shared with every other replay, the frames must not be
+    // modified
+    public Replay replay(long fromId, long toId, int maxCount, boolean binary, boolean compress) {
+        this.lock.readLock().lock();
+        try {
+            int end = this.indexOf(toId);
+            int start = Math.max(this.indexOf(fromId), end - Math.max(0, maxCount));
+            long now = System.currentTimeMillis();
+
+            // Messages expire oldest first, so the unexpired ones follow the expired ones
+            while (start < end && this.expired(this.ring[(this.head + start) % this.ring.length], now)) {
+                start++;
+            }
+            if (start == end) {
+                return new Replay(List.of(), 0, -1, -1);
+            }
+
+            long firstId = this.ring[(this.head + start) % this.ring.length].id;
+            long lastId = this.ring[(this.head + end - 1) % this.ring.length].id;
+
+            // Messages are never removed from the middle, so the same first and last ids mean the same messages.
+            // Concurrent readers may race to replace it, any of their replays is as good
+            int kind = (binary ? 2 : 0) + (compress ? 1 : 0);
+            Replay recent = this.recent[kind];
+            if (recent != null && recent.firstId == firstId && recent.lastId == lastId) {
+                return recent;
+            }
+
+            long endId = (end == this.size ? Long.MAX_VALUE : this.ring[(this.head + end) % this.ring.length].id);
+            List<byte[]> frames = new ArrayList<>();
+
+            // The messages left of a block whose oldest ones were evicted, copied into one array
+            ByteArrayOutputStream partial = new ByteArrayOutputStream();
+            int blocksStart = Math.min(end, this.indexOf(this.firstBlockedId()));
+            for (int i = start; i < blocksStart; i++) {
+                Message msg = this.ring[(this.head + i) % this.ring.length];
+                partial.writeBytes(binary ? msg.binaryFrame() : msg.frame());
+            }
+            addCopy(frames, partial, compress);
+
+            for (Block block : this.blocks) {
+                if (block.lastId() >= firstId && block.firstId() < endId) {
+                    frames.add(block.frames(firstId, endId, binary, compress));
+                }
+            }
+
+            // The messages since the last full block, copied into one array
+            ByteArrayOutputStream rest = new ByteArrayOutputStream();
+            for (int i = 0; i < this.openSize; i++) {
+                Message msg = this.openBlock[i];
+                if (msg.id >= firstId && msg.id < endId) {
+                    rest.writeBytes(binary ? msg.binaryFrame() : msg.frame());
+                }
+            }
+            addCopy(frames, rest, compress);
+
+            recent = new Replay(List.copyOf(frames), end - start, firstId, lastId);
+            this.recent[kind] = recent;
+            return recent;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    // Searches the index for messages with an id of at least fromId where every query token is the prefix of a
+    // token of the content or sender name. Returns the newest matches, at most limit of them, oldest first
+    public List<Message> search(String[] queryTokens, long fromId, int limit) {
+        this.lock.readLock().lock();
+        try {
+            long[] ids = this.index.search(queryTokens, fromId);
+            List<Message> result = new ArrayList<>(Math.min(ids.length, limit));
+            long now = System.currentTimeMillis();
+
+            for (int i = ids.length - 1; i >= 0 && result.size() < limit; i--) {
+                Message msg = this.find(ids[i]);
+                if (msg != null && !this.expired(msg, now)) {
+                    result.add(msg);
+                }
+            }
+
+            Collections.reverse(result);
+            return result;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    // Id of the oldest retained message, or the id the next message will get if empty
+    public long firstId() {
+        this.lock.readLock().lock();
+        try {
+            return (this.size == 0 ? this.idSource.get() : this.ring[this.head].id);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    // Number of retained messages with fromId <= id < toId
+    public int count(long fromId, long toId) {
+        this.lock.readLock().lock();
+        try {
+            return Math.max(0, this.indexOf(toId) - this.indexOf(fromId));
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        this.lock.readLock().lock();
+        try {
+            return this.size;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    // Of the retained messages and the renderings of their blocks
+    public long bytes() {
+        this.lock.readLock().lock();
+        try {
+            return this.bytes + this.renderedBytes.get();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    // Position (0 = oldest) of the first message with an id of at least the given one, by binary search
+    private int indexOf(long id) {
+        int low = 0;
+        int high = this.size;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.ring[(this.head + mid) % this.ring.length].id < id) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Id of the oldest message of a block (full or open), older retained messages were in a dropped block
+    private long firstBlockedId() {
+        if (!this.blocks.isEmpty()) {
+            return this.blocks.peekFirst().firstId();
+        }
+        return (this.openSize > 0 ? this.openBlock[0].id : Long.MAX_VALUE);
+    }
+
+    private Message find(long id) {
+        int i = this.indexOf(id);
+        if (i == this.size) {
+            return null;
+        }
+
+        Message msg = this.ring[(this.head + i) % this.ring.length];
+        return (msg.id == id ? msg : null);
+    }
+
+    // Doubles the ring (up to its capacity), moving the oldest message to the start
+    private void grow() {
+        Message[] larger = new Message[(int) Math.min((long) this.ring.length * 2, this.capacity)];
+
+        for (int i = 0; i < this.size; i++) {
+            larger[i] = this.ring[(this.head + i) % this.ring.length];
+        }
+        this.ring = larger;
+        this.head = 0;
+    }
+
+    private void evictOldest() {
+        Message msg = this.ring[this.head];
+        this.bytes -= sizeOf(msg);
+        this.ring[this.head] = null;
+        this.head = (this.head + 1) % this.ring.length;
+        this.size--;
+        this.evictedSincePrune++;
+
+        // The rest of the block is replayed message by message until evicted too
+        if (!this.blocks.isEmpty() && this.blocks.peekFirst().firstId() == msg.id) {
+            this.renderedBytes.addAndGet(-this.blocks.pollFirst().renderedBytes());
+        }
+        else if (this.openSize > 0 && this.openBlock[0] == msg) { // Only with a history smaller than a block
+            System.arraycopy(this.openBlock, 1, this.openBlock, 0, --this.openSize);
+            this.openBlock[this.openSize] = null;
+        }
+
+        for (int i = 0; i < this.recent.length; i++) {
+            if (this.recent[i] != null && this.recent[i].firstId <= msg.id) {
+                this.recent[i] = null;
+            }
+        }
+    }
+
+    private static void addCopy(List<byte[]> frames, ByteArrayOutputStream copy, boolean compress) {
+        if (copy.size() > 0) {
+            byte[] copied = copy.toByteArray();
+            byte[] compressed = (compress ? Compression.compressedFrame(copied, 0, copied.length) : null);
+            frames.add(compressed != null ? compressed : copied);
+        }
+    }
+
+    private boolean expired(Message msg, long now) {
+        return this.maxAgeMillis > 0 && now - msg.sentAt > this.maxAgeMillis;
+    }
+
+    private static long sizeOf(Message msg) {
+        return MESSAGE_OVERHEAD + msg.frame().length;
+    }
+
+    // Messages to replay to a client: count messages from firstId to lastId (-1 if none), as a few concatenated
+    // frames. Shared by the clients replaying the same messages
+    public static class Replay {
+        public final List<byte[]> frames;
+        public final int count;
+        public final long firstId;
+        public final long lastId;
+
+        private Replay(List<byte[]> frames, int count, long firstId, long lastId) {
+            this.frames = frames;
+            this.count = count;
+            this.firstId = firstId;
+            this.lastId = lastId;
+        }
+    }
+
+    // BLOCK_MESSAGES consecutive messages of the room, rendered on first use under the history's read lock. Renderings
+    // are made once, so each is counted once in renderedBytes
+    private static class Block {
+        private final Message[] messages;
+        private final AtomicLong renderedBytes;
+        private volatile Rendering text;
+        private volatile Rendering binary;
+
+        private Block(Message[] messages, AtomicLong renderedBytes) {
+            this.messages = messages;
+            this.renderedBytes = renderedBytes;
+        }
+
+        private long firstId() {
+            return this.messages[0].id;
+        }
+
+        private long lastId() {
+            return this.messages[this.messages.length - 1].id;
+        }
+
+        // Bytes held by the renderings made so far
+        private long renderedBytes() {
+            return (this.text == null ? 0 : this.text.size()) + (this.binary == null ? 0 : this.binary.size());
+        }
+
+        // Frames of the block's messages with fromId <= id < toId, the shared array if that is all of them
+        private byte[] frames(long fromId, long toId, boolean binary, boolean compress) {
+            Rendering rendering = (binary ? this.binary : this.text);
+            if (rendering == null) {
+                rendering = this.render(binary);
+            }
+
+            int from = 0;
+            while (this.messages[from].id < fromId) {
+                from++;
+            }
+            int to = this.messages.length;
+            while (this.messages[to - 1].id >= toId) {
+                to--;
+            }
+
+            if (from == 0 && to == this.messages.length) {
+                return (compress ? rendering.compressed() : rendering.bytes);
+            }
+
+            int start = rendering.offsets[from];
+            int length = rendering.offsets[to] - start;
+            byte[] compressed = (compress ? Compression.compressedFrame(rendering.bytes, start, length) : null);
+            return (compressed != null ? compressed : Arrays.copyOfRange(rendering.bytes, start, start + length));
+        }
+
+        private synchronized Rendering render(boolean binary) {
+            Rendering rendering = (binary ? this.binary : this.text);
+            if (rendering != null) { // Made by another thread in the meantime
+                return rendering;
+            }
+
+            rendering = new Rendering(this.messages, binary, this.renderedBytes);
+            this.renderedBytes.addAndGet(rendering.size());
+            if (binary) {
+                this.binary = rendering;
+            }
+            else {
+                this.text = rendering;
+            }
+            return rendering;
+        }
+    }
+
+    // The frames of some messages concatenated, offsets[i] being where the i-th one starts (and offsets[n] the end)
+    private static class Rendering {
+        private final byte[] bytes;
+        private final int[] offsets;
+        private final AtomicLong renderedBytes;
+        private volatile byte[] compressed; // COMPRESSED frame of bytes (or bytes if not worth it), made on first use
+
+        private Rendering(Message[] messages, boolean binary, AtomicLong renderedBytes) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            this.offsets = new int[messages.length + 1];
+            this.renderedBytes = renderedBytes;
+
+            for (int i = 0; i < messages.length; i++) {
+                this.offsets[i] = out.size();
+                out.writeBytes(binary ? messages[i].binaryFrame() : messages[i].frame());
+            }
+            this.offsets[messages.length] = out.size();
+            this.bytes = out.toByteArray();
+        }
+
+        private long size() {
+            byte[] compressed = this.compressed;
+            return this.bytes.length + 4L * this.offsets.length + (compressed == null || compressed == this.bytes ? 0 : compressed.length);
+        }
+
+        private byte[] compressed() {
+            byte[] compressed = this.compressed;
+            return (compressed != null ? compressed : this.compress());
+        }
+
+        private synchronized byte[] compress() {
+            if (this.compressed == null) {
+                byte[] compressed = Compression.compressedFrame(this.bytes, 0, this.bytes.length);
+                this.compressed = (compressed != null ? compressed : this.bytes);
+                if (compressed != null) {
+                    this.renderedBytes.addAndGet(compressed.length);
+                }
+            }
+            return this.compressed;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package chatroom.server;
+
+import chatroom.protocol.BinaryProtocol;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Reads the UTF-8 lines of a text client on the blocking engines, like BufferedReader.readLine but failing on lines
+// longer than BinaryProtocol.MAX_TEXT_LENGTH bytes, as the NIO engine does, so a client cannot make the server
+// buffer (and then broadcast) a line of any length
+public class LineReader {
+    private final InputStream input;
+    private final byte[] buffer = new byte[8192]; // Read ahead, from position to limit
+    private int position;
+    private int limit;
+    private byte[] line = new byte[256];
+
+    public LineReader(InputStream input) {
+        this.input = input;
+    }
+
+    // The next line without its line break (\n or \r\n), or null at the end of the stream
+    public String readLine() throws IOException {
+        int length = 0;
+
+        while (true) {
+            if (this.position == this.limit) {
+                int read = this.input.read(this.buffer);
+                if (read < 0) {
+                    return (length > 0 ? this.decode(length) : null); // Last line without a line break
+                }
+                this.position = 0;
+                this.limit = read;
+            }
+
+            int end = this.position;
+            while (end < this.limit && this.buffer[end] != '\n') {
+                end++;
+            }
+
+            int count = end - this.position;
+            if (length + count > BinaryProtocol.MAX_TEXT_LENGTH) {
+                throw new LineTooLongException();
+            }
+            if (this.line.length < length + count) {
+                this.line = Arrays.copyOf(this.line, Math.min(Math.max(length + count, this.line.length * 2), BinaryProtocol.MAX_TEXT_LENGTH));
+            }
+            System.arraycopy(this.buffer, this.position, this.line, length, count);
+            length += count;
+
+            if (end < this.limit) {
+                this.position = end + 1; // After the \n
+                if (length > 0 && this.line[length - 1] == '\r') {
+                    length--;
+                }
+                return this.decode(length);
+            }
+            this.position = this.limit;
+        }
+    }
+
+    private String decode(int length) {
+        return new String(this.line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    public static class LineTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public LineTooLongException() {
+            super("Line longer than " + BinaryProtocol.MAX_TEXT_LENGTH + " bytes.");
+        }
+    }
+}
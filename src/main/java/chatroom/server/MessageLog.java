@@ -0,0 +1,254 @@
+package chatroom.server;
+
+import chatroom.objects.Message;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Durable append-only log of the public messages, split into segment files named after their first message id.
+// Appends are queued and written by a single thread in batches, with one fsync per batch (group commit).
+//
+// Record format, big-endian:
+//   int length (of everything after crc) | int crc32 | long id | long sentAt
+//   | int nameLength | name (UTF-8) | int senderIdLength | senderId (UTF-8) | [int roomLength | room (UTF-8)]
+//   | content (UTF-8, rest of the record)
+// The room is only written for rooms other than the default one, which is flagged by the sign bit of
+// nameLength. Records written before there were rooms therefore still read as messages of the default room
+public class MessageLog implements Runnable {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_SIZE = 8; // length + crc
+    private static final int MIN_RECORD_LENGTH = 8 + 8 + 4 + 4;
+    private static final int MAX_BATCH = 4096;
+    private static final int HAS_ROOM = 0x80000000;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final LinkedBlockingQueue<Message> pending = new LinkedBlockingQueue<>();
+    private final CRC32 crc = new CRC32(); // Only used by the writer thread
+    private Thread writer; // Created by start, so the log is not published before it is fully constructed
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private FileChannel segment;
+    private Path segmentPath;
+    private volatile boolean running;
+
+    public MessageLog(Path directory, long segmentBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.segmentBytes = segmentBytes;
+    }
+
+    // Reads back the newest messages, at most maxMessages of them, oldest first. Segments are memory-mapped and
+    // read from the newest one backwards, so restart time depends on the history kept rather than on the log size
+    public List<Message> recover(int maxMessages) throws IOException {
+        List<Path> segments = this.segments();
+        Deque<List<Message>> recovered = new ArrayDeque<>();
+        int count = 0;
+
+        for (int i = segments.size() - 1; i >= 0 && count < maxMessages; i--) {
+            List<Message> messages = readSegment(segments.get(i));
+            recovered.addFirst(messages);
+            count += messages.size();
+        }
+
+        List<Message> result = new ArrayList<>(count);
+        for (List<Message> messages : recovered) {
+            result.addAll(messages);
+        }
+        return result.subList(Math.max(0, result.size() - maxMessages), result.size());
+    }
+
+    // Starts the writer on a new segment after whatever was recovered, so a torn record at the end of the
+    // previous segment is never followed by valid ones
+    public void start(long nextId) throws IOException {
+        this.openSegment(nextId);
+        this.running = true;
+        this.writer = new Thread(this, "chatroom-message-log");
+        this.writer.start();
+    }
+
+    // Queues a message to be written, never blocks
+    public void append(Message msg) {
+        this.pending.add(msg);
+    }
+
+    @Override
+    public void run() {
+        List<Message> batch = new ArrayList<>();
+
+        while (this.running || !this.pending.isEmpty()) {
+            try {
+                Message first = this.pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                // Everything queued while the previous batch was being synced goes out with a single fsync
+                batch.add(first);
+                this.pending.drainTo(batch, MAX_BATCH - 1);
+                this.writeBatch(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                this.running = false;
+            } catch (IOException e) {
+                System.err.println("Failed to write " + batch.size() + " message(s) to the message log.");
+                batch.clear();
+            }
+        }
+    }
+
+    // Writes what is still queued and closes the log
+    public void close() {
+        this.running = false;
+
+        try {
+            if (this.writer != null) {
+                this.writer.join();
+            }
+            if (this.segment != null) {
+                this.segment.force(false);
+
+                // Do not leave an empty segment behind for every restart without messages
+                boolean empty = (this.segment.size() == 0);
+                this.segment.close();
+                if (empty) {
+                    Files.deleteIfExists(this.segmentPath);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("An error occurred when attempting to close the message log.");
+        }
+    }
+
+    private void writeBatch(List<Message> batch) throws IOException {
+        for (Message msg : batch) {
+            this.encode(msg);
+
+            if (this.writeBuffer.position() >= this.writeBuffer.capacity() / 2) {
+                this.flushBuffer();
+            }
+        }
+        this.flushBuffer();
+        this.segment.force(false);
+
+        if (this.segment.size() >= this.segmentBytes) {
+            this.segment.close();
+            this.openSegment(batch.get(batch.size() - 1).id + 1);
+        }
+    }
+
+    private void encode(Message msg) {
+        byte[] name = msg.senderName.getBytes(StandardCharsets.UTF_8);
+        byte[] senderId = msg.senderId.getBytes(StandardCharsets.UTF_8);
+        byte[] content = msg.content.getBytes(StandardCharsets.UTF_8);
+        byte[] room = (Room.DEFAULT.equals(msg.room) ? null : msg.room.getBytes(StandardCharsets.UTF_8));
+        int length = MIN_RECORD_LENGTH + name.length + senderId.length + content.length + (room == null ? 0 : 4 + room.length);
+
+        if (this.writeBuffer.remaining() < HEADER_SIZE + length) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(this.writeBuffer.capacity() * 2, this.writeBuffer.position() + HEADER_SIZE + length));
+            this.writeBuffer.flip();
+            larger.put(this.writeBuffer);
+            this.writeBuffer = larger;
+        }
+
+        int start = this.writeBuffer.position();
+        this.writeBuffer.putInt(length);
+        this.writeBuffer.putInt(0); // crc, filled in below
+        this.writeBuffer.putLong(msg.id);
+        this.writeBuffer.putLong(msg.sentAt);
+        this.writeBuffer.putInt(room == null ? name.length : name.length | HAS_ROOM).put(name);
+        this.writeBuffer.putInt(senderId.length).put(senderId);
+        if (room != null) {
+            this.writeBuffer.putInt(room.length).put(room);
+        }
+        this.writeBuffer.put(content);
+
+        this.crc.reset();
+        this.crc.update(this.writeBuffer.slice(start + HEADER_SIZE, length));
+        this.writeBuffer.putInt(start + 4, (int) this.crc.getValue());
+    }
+
+    private void flushBuffer() throws IOException {
+        this.writeBuffer.flip();
+        while (this.writeBuffer.hasRemaining()) {
+            this.segment.write(this.writeBuffer);
+        }
+        this.writeBuffer.clear();
+    }
+
+    private void openSegment(long firstId) throws IOException {
+        this.segmentPath = this.directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstId, SEGMENT_SUFFIX));
+        this.segment = FileChannel.open(this.segmentPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    // Segment files sorted by their first id, which the zero-padded names sort the same as
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+
+        Collections.sort(segments);
+        return segments;
+    }
+
+    // Reads all valid records of a segment, stopping at the first torn or corrupt one (e.g. after a crash)
+    private static List<Message> readSegment(Path path) throws IOException {
+        List<Message> messages = new ArrayList<>();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc = new CRC32();
+
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int length = buffer.getInt();
+                int expectedCrc = buffer.getInt();
+                if (length < MIN_RECORD_LENGTH || length > buffer.remaining()) {
+                    break;
+                }
+
+                ByteBuffer record = buffer.slice(buffer.position(), length);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != expectedCrc) {
+                    break;
+                }
+
+                try {
+                    long id = record.getLong();
+                    long sentAt = record.getLong();
+                    int nameLength = record.getInt();
+                    String name = readString(record, nameLength & ~HAS_ROOM);
+                    String senderId = readString(record, record.getInt());
+                    String room = ((nameLength & HAS_ROOM) != 0 ? readString(record, record.getInt()) : Room.DEFAULT);
+                    String content = readString(record, record.remaining());
+                    messages.add(new Message(id, room, content, sentAt, name, senderId));
+                } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+                    break;
+                }
+
+                buffer.position(buffer.position() + length);
+            }
+        }
+
+        return messages;
+    }
+
+    private static String readString(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
\ No newline at end of file
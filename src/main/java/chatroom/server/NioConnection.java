@@ -0,0 +1,324 @@
+package chatroom.server;
+
+import chatroom.protocol.BinaryProtocol;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// Non-blocking transport of one client, owned by a single NioEventLoop
+public class NioConnection {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = BinaryProtocol.MAX_TEXT_LENGTH; // Longer lines are treated as a misbehaving client
+    private static final int MAX_WRITE_FRAMES = 64; // Frames handed to one gathering write
+    private static final int MAX_WRITE_BYTES = 256 * 1024;
+
+    private final SocketChannel channel;
+    private final NioEventLoop loop;
+    private final Server server;
+    private ClientConnection client; // Created by open, so this connection is not published before it is fully constructed
+    private final ServerMetrics metrics;
+    private final long handshakeTimeoutNanos; // 0 when there is no limit
+    private final long idleTimeoutNanos;
+    private final ByteBuffer readBuffer;
+    private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_WRITE_FRAMES]; // Frames being written, from writeStart on
+    private int writeStart;
+    private int writeEnd;
+    private SelectionKey key;
+    private byte[] lineBuffer; // Current line, or current frame for binary clients
+    private int lineLength;
+    private boolean protocolChosen; // Set by the first byte received, MAGIC[0] selects the binary protocol
+    private boolean binary;
+    private boolean magicRead;
+    private boolean readPaused; // Throttled by the rate limits, what is left in readBuffer waits too
+    private long lastReadAt; // System.nanoTime of the last bytes received
+    private volatile boolean closed;
+
+    public NioConnection(SocketChannel channel, NioEventLoop loop, Server server) {
+        this.channel = channel;
+        this.loop = loop;
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        this.lineBuffer = new byte[256];
+        this.server = server;
+        this.metrics = server.metrics;
+        this.handshakeTimeoutNanos = TimeUnit.SECONDS.toNanos(server.config.handshakeTimeoutSeconds);
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(server.config.idleTimeoutSeconds);
+    }
+
+    // Registers the channel on its loop and starts the name handshake, must be called from the loop thread
+    protected void open() {
+        this.client = new ClientConnection(this, this.server);
+
+        try {
+            this.key = this.loop.register(this.channel, this);
+        } catch (IOException e) {
+            System.err.println("Failed to register client channel.");
+            this.close();
+            return;
+        }
+
+        this.lastReadAt = System.nanoTime();
+        this.client.open();
+    }
+
+    // Reads what is available and hands every complete line or frame to the ClientConnection
+    protected void onReadable() {
+        int read;
+
+        try {
+            read = this.channel.read(this.readBuffer);
+        } catch (IOException e) {
+            read = -1;
+        }
+
+        if (read < 0) {
+            this.client.disconnect();
+            return;
+        }
+        this.metrics.bytesIn.add(read);
+        this.lastReadAt = System.nanoTime();
+
+        this.readBuffer.flip();
+        this.processInput();
+    }
+
+    // Handles the lines or frames in readBuffer (flipped for reading) until it is empty or reading is paused,
+    // then keeps what is left for later
+    private void processInput() {
+        if (!this.protocolChosen && this.readBuffer.hasRemaining()) {
+            this.protocolChosen = true;
+            this.binary = (this.readBuffer.get(0) == BinaryProtocol.MAGIC[0]);
+        }
+
+        if (this.binary) {
+            this.readFrames();
+        }
+        else {
+            this.readLines();
+        }
+        this.readBuffer.compact();
+    }
+
+    // Stops reading for a while, from the next line or frame on. Called on the loop thread while handling input
+    protected void pauseReading(long nanos) {
+        if (this.readPaused || this.closed) {
+            return;
+        }
+
+        this.readPaused = true;
+        this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+        this.loop.scheduleAfter(nanos, this::resumeReading);
+    }
+
+    // Handles what was left over when reading was paused, then reads from the socket again unless paused anew
+    private void resumeReading() {
+        if (this.closed) {
+            return;
+        }
+
+        this.readPaused = false;
+        this.readBuffer.flip();
+        this.processInput();
+
+        if (!this.readPaused && !this.closed) {
+            this.key.interestOps(this.key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void readLines() {
+        while (this.readBuffer.hasRemaining() && !this.closed && !this.readPaused) {
+            byte b = this.readBuffer.get();
+
+            if (b == '\n') {
+                int length = this.lineLength;
+                if (length > 0 && this.lineBuffer[length - 1] == '\r') {
+                    length--;
+                }
+
+                this.lineLength = 0;
+                this.client.handleLine(new String(this.lineBuffer, 0, length, StandardCharsets.UTF_8));
+            }
+            else if (this.lineLength == MAX_LINE_LENGTH) {
+                System.err.println("Line too long from " + this.client.name + "#" + this.client.id + ", closing connection.");
+                this.client.disconnect();
+            }
+            else {
+                if (this.lineLength == this.lineBuffer.length) {
+                    this.lineBuffer = Arrays.copyOf(this.lineBuffer, Math.min(this.lineBuffer.length * 2, MAX_LINE_LENGTH));
+                }
+                this.lineBuffer[this.lineLength++] = b;
+            }
+        }
+    }
+
+    // Binary protocol: the magic bytes, then length-prefixed frames, copied in bulk rather than byte by byte
+    private void readFrames() {
+        while (this.readBuffer.hasRemaining() && !this.closed && !this.readPaused) {
+            int expected = this.expectedLength();
+            if (expected < 0) {
+                System.err.println("Invalid frame from " + this.client.name + "#" + this.client.id + ", closing connection.");
+                this.client.disconnect();
+                return;
+            }
+
+            if (this.lineBuffer.length < expected) {
+                this.lineBuffer = Arrays.copyOf(this.lineBuffer, Math.max(expected, this.lineBuffer.length * 2));
+            }
+            int count = Math.min(expected - this.lineLength, this.readBuffer.remaining());
+            this.readBuffer.get(this.lineBuffer, this.lineLength, count);
+            this.lineLength += count;
+
+            // Having read a frame's length prefix changes what is expected, so this only matches complete units
+            if (this.lineLength == this.expectedLength()) {
+                this.lineLength = 0;
+
+                if (!this.magicRead) {
+                    if (!Arrays.equals(this.lineBuffer, 0, BinaryProtocol.MAGIC.length, BinaryProtocol.MAGIC, 0, BinaryProtocol.MAGIC.length)) {
+                        System.err.println("Unsupported protocol version from client #" + this.client.id + ", closing connection.");
+                        this.client.disconnect();
+                        return;
+                    }
+                    this.magicRead = true;
+                    this.client.startBinary();
+                }
+                else {
+                    this.client.handleFrame(ByteBuffer.wrap(this.lineBuffer, 4, expected - 4).slice());
+                }
+            }
+        }
+    }
+
+    // Length of the unit being read: the magic bytes, a frame's length prefix, or the whole frame (-1 if invalid)
+    private int expectedLength() {
+        if (!this.magicRead) {
+            return BinaryProtocol.MAGIC.length;
+        }
+        if (this.lineLength < 4) {
+            return 4;
+        }
+
+        int length = ByteBuffer.wrap(this.lineBuffer, 0, 4).getInt();
+        return (length < 1 || length > BinaryProtocol.MAX_CLIENT_FRAME_LENGTH ? -1 : 4 + length);
+    }
+
+    protected void onWritable() {
+        this.flushWrites();
+    }
+
+    // Drainer of the client's outbound queue, callable from any thread. On the loop thread the flush waits for the
+    // end of the current tick, so everything queued to this client meanwhile goes out in one write
+    protected void scheduleFlush() {
+        if (this.loop.inLoop()) {
+            this.loop.flushAtEndOfTick(this);
+        }
+        else {
+            this.loop.schedule(this::flushWrites);
+        }
+    }
+
+    // Disconnects the client if it sent nothing for too long, called by the loop's idle check. A throttled client
+    // is not idle, the server is the one not reading
+    protected void checkIdle(long now) {
+        if (this.closed || this.readPaused) {
+            return;
+        }
+
+        long timeout = (this.client.room == null ? this.handshakeTimeoutNanos : this.idleTimeoutNanos);
+        if (timeout > 0 && now - this.lastReadAt >= timeout) {
+            this.client.timeOut();
+        }
+    }
+
+    // Disconnects the client from another thread, e.g. when the server shuts down
+    protected void disconnectLater() {
+        this.loop.schedule(this.client::disconnect);
+    }
+
+    // Disconnects a client that cannot keep up. Always deferred, the caller may be iterating over the clients
+    protected void closeLater() {
+        System.out.println(this.client.name + "#" + this.client.id + " cannot keep up with incoming messages and is being disconnected.");
+        this.loop.schedule(this.client::disconnect);
+    }
+
+    // Whether the client connects from the server's own machine, false once the channel is closed
+    protected boolean isLocal() {
+        try {
+            return this.channel.getRemoteAddress() instanceof InetSocketAddress address && address.getAddress().isLoopbackAddress();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Writes as much of the outbound queue as the socket accepts, waiting for OP_WRITE for the rest.
+    // Queued frames are gathered into a single write call rather than one call (and packet) per frame
+    protected void flushWrites() {
+        if (this.closed || this.key == null) {
+            return;
+        }
+
+        try {
+            while (true) {
+                if (this.writeStart == this.writeEnd && !this.fillWriteBatch()) {
+                    if (this.client.outbound.finishDrain()) {
+                        continue;
+                    }
+
+                    this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+                    return;
+                }
+
+                this.metrics.bytesOut.add(this.channel.write(this.writeBatch, this.writeStart, this.writeEnd - this.writeStart));
+                this.metrics.socketWrites.increment();
+
+                while (this.writeStart < this.writeEnd && !this.writeBatch[this.writeStart].hasRemaining()) {
+                    this.writeBatch[this.writeStart++] = null;
+                }
+                if (this.writeStart < this.writeEnd) {
+                    this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // Deferred like closeLater, a write may be triggered while iterating over the clients
+            this.client.outbound.clear();
+            this.loop.schedule(this.client::disconnect);
+        }
+    }
+
+    // Closes the channel, safe to call more than once
+    protected void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+
+        if (this.key != null) {
+            this.key.cancel();
+        }
+
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            System.err.println("An error occurred when attempting to close client " + this.client.name + "#" + this.client.id + ".");
+        }
+        Arrays.fill(this.writeBatch, null);
+        this.writeStart = this.writeEnd = 0;
+    }
+
+    // Takes queued frames into the (empty) write batch, returns false if there were none
+    private boolean fillWriteBatch() {
+        this.writeStart = this.writeEnd = 0;
+        int bytes = 0;
+        byte[] frame;
+
+        while (this.writeEnd < MAX_WRITE_FRAMES && bytes < MAX_WRITE_BYTES && (frame = this.client.outbound.poll()) != null) {
+            this.writeBatch[this.writeEnd++] = ByteBuffer.wrap(frame);
+            bytes += frame.length;
+        }
+        return this.writeEnd > 0;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,196 @@
+package chatroom.server;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// A single selector thread serving the IO of many NioConnections
+public class NioEventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks; // Tasks submitted by other threads, ran inside the loop
+    private final List<NioConnection> pendingFlushes = new ArrayList<>(); // Connections written to during this tick, loop thread only
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(timer -> timer.at)); // Loop thread only
+    private final String name;
+    private Thread thread; // Created by start, so the loop is not published to it before it is fully constructed
+    private volatile boolean running;
+
+    public NioEventLoop(String name) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+    }
+
+    public void start() {
+        this.running = true;
+        this.thread = new Thread(this, this.name);
+        this.thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            try {
+                this.selector.select(this.selectTimeoutMillis());
+            } catch (IOException e) {
+                System.err.println("Selector failed on " + this.name + ".");
+                break;
+            }
+
+            this.runTasks();
+            this.runTimers();
+
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                NioConnection connection = (NioConnection) key.attachment();
+                if (!key.isValid()) {
+                    connection.close();
+                    continue;
+                }
+
+                if (key.isReadable()) {
+                    connection.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.onWritable();
+                }
+            }
+
+            this.flushPending();
+        }
+
+        this.closeAll();
+    }
+
+    // Returns whether the caller is the loop thread itself
+    public boolean inLoop() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    // Runs the task inside the loop thread, immediately if already in it
+    public void execute(Runnable task) {
+        if (this.inLoop()) {
+            task.run();
+            return;
+        }
+
+        this.schedule(task);
+    }
+
+    // Runs the task on a later iteration of the loop, even if already in it
+    public void schedule(Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    // Flushes the connection once the current tick is over, must be called from the loop thread. Its outbound
+    // queue stays marked as draining meanwhile, so this is only called once per connection and tick
+    protected void flushAtEndOfTick(NioConnection connection) {
+        this.pendingFlushes.add(connection);
+    }
+
+    // Runs the task on the loop after the delay, must be called from the loop thread
+    protected void scheduleAfter(long delayNanos, Runnable task) {
+        this.timers.add(new Timer(System.nanoTime() + delayNanos, task));
+    }
+
+    // Checks the connections of this loop for idle ones every period, from now on
+    protected void checkIdleEvery(long periodNanos) {
+        this.schedule(() -> this.scheduleAfter(periodNanos, () -> this.checkIdle(periodNanos)));
+    }
+
+    // Registers an accepted channel on this loop, must be called from the loop thread
+    protected SelectionKey register(SocketChannel channel, NioConnection connection) throws IOException {
+        channel.configureBlocking(false);
+        return channel.register(this.selector, SelectionKey.OP_READ, connection);
+    }
+
+    public void shutdown() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!this.timers.isEmpty() && this.timers.peek().at - now <= 0) {
+            this.timers.poll().task.run();
+        }
+    }
+
+    // How long select may block: until the next timer is due, or for ever (0) if there is none
+    private long selectTimeoutMillis() {
+        if (this.timers.isEmpty()) {
+            return 0;
+        }
+
+        long nanos = this.timers.peek().at - System.nanoTime();
+        return Math.max(1, (nanos + 999_999) / 1_000_000);
+    }
+
+    // Times out the connections that sent nothing for too long, then checks again after the period
+    private void checkIdle(long periodNanos) {
+        long now = System.nanoTime();
+        List<NioConnection> connections = new ArrayList<>(this.selector.keys().size());
+
+        // Copied first, disconnecting cancels keys
+        for (SelectionKey key : this.selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof NioConnection connection) {
+                connections.add(connection);
+            }
+        }
+        for (NioConnection connection : connections) {
+            connection.checkIdle(now);
+        }
+
+        this.scheduleAfter(periodNanos, () -> this.checkIdle(periodNanos));
+    }
+
+    // Writes out everything queued during the tick. A flush may queue to more connections (e.g. disconnecting a
+    // client announces it), which are flushed in the same pass
+    private void flushPending() {
+        for (int i = 0; i < this.pendingFlushes.size(); i++) {
+            this.pendingFlushes.get(i).flushWrites();
+        }
+        this.pendingFlushes.clear();
+    }
+
+    // Closes all remaining connections once the loop stops
+    private void closeAll() {
+        for (SelectionKey key : this.selector.keys()) {
+            if (key.attachment() instanceof NioConnection connection) {
+                connection.close();
+            }
+        }
+
+        try {
+            this.selector.close();
+        } catch (IOException e) {
+            System.err.println("An error occurred when attempting to close " + this.name + ".");
+        }
+    }
+
+    private static class Timer {
+        private final long at;
+        private final Runnable task;
+
+        private Timer(long at, Runnable task) {
+            this.at = at;
+            this.task = task;
+        }
+    }
+}
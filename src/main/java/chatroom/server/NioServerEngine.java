@@ -0,0 +1,79 @@
+package chatroom.server;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+// Non-blocking server engine: one acceptor thread handing sockets round-robin to a fixed set of event loops
+public class NioServerEngine {
+    private static final long IDLE_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1); // Timeouts are enforced to the second
+    private static final long ACCEPT_RETRY_MILLIS = 100; // Pause after a failed accept
+
+    private final Server server;
+    private final ServerSocketChannel serverChannel;
+    private final NioEventLoop[] loops;
+    private final Thread acceptor;
+    private int nextLoop = 0;
+
+    public NioServerEngine(Server server, ServerSocketChannel serverChannel, int eventLoopThreads) throws IOException {
+        this.server = server;
+        this.serverChannel = serverChannel;
+        this.loops = new NioEventLoop[eventLoopThreads];
+        for (int i = 0; i < eventLoopThreads; i++) {
+            this.loops[i] = new NioEventLoop("chatroom-nio-" + server.serverPort + "-" + i);
+        }
+        this.acceptor = new Thread(this::acceptConnections, "chatroom-nio-" + server.serverPort + "-acceptor");
+    }
+
+    public void start() {
+        boolean timeouts = (this.server.config.handshakeTimeoutSeconds > 0 || this.server.config.idleTimeoutSeconds > 0);
+
+        for (NioEventLoop loop : this.loops) {
+            loop.start();
+            if (timeouts) {
+                loop.checkIdleEvery(IDLE_CHECK_NANOS);
+            }
+        }
+        this.acceptor.start();
+    }
+
+    // Accepts in blocking mode, the accepted channels themselves are switched to non-blocking by their loop
+    private void acceptConnections() {
+        while (this.serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = this.serverChannel.accept();
+                NioEventLoop loop = this.loops[this.nextLoop];
+                this.nextLoop = (this.nextLoop + 1) % this.loops.length;
+
+                NioConnection connection = new NioConnection(channel, loop, this.server);
+                loop.execute(connection::open);
+            } catch (IOException e) {
+                if (!this.serverChannel.isOpen()) {
+                    break; // Closed by shutdown
+                }
+
+                // Usually passing, e.g. out of file descriptors or a client that gave up, so the server keeps
+                // accepting after a pause rather than spinning on the same error
+                System.err.println("Failed to accept and initialize client connection.");
+                try {
+                    Thread.sleep(ACCEPT_RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public void shutdown() {
+        try {
+            this.serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("An error occurred when attempting to close the server channel.");
+        }
+
+        for (NioEventLoop loop : this.loops) {
+            loop.shutdown();
+        }
+    }
+}
\ No newline at end of file
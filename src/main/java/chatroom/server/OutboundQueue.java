@@ -0,0 +1,112 @@
+package chatroom.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded queue of encoded lines waiting to be written to one client, drained by at most one writer task at a time
+public class OutboundQueue {
+    private final ArrayBlockingQueue<byte[]> frames;
+    private final ServerConfig.SlowConsumerPolicy policy;
+    private final long blockTimeoutMillis;
+    private final Runnable drainer; // Starts a writer task that drains the queue
+    private final Runnable onOverflow; // Disconnects the client once it cannot keep up
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicInteger highWaterMark = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean overflowed;
+
+    public OutboundQueue(ServerConfig config, Runnable drainer, Runnable onOverflow) {
+        this.frames = new ArrayBlockingQueue<>(config.outboundCapacity);
+        this.policy = config.slowConsumerPolicy;
+        this.blockTimeoutMillis = config.blockTimeoutMillis;
+        this.drainer = drainer;
+        this.onOverflow = onOverflow;
+    }
+
+    // Queues a frame, applying the slow consumer policy if full. Callers that must not wait pass mayBlock = false,
+    // in which case the BLOCK policy disconnects immediately
+    public boolean offer(byte[] frame, boolean mayBlock) {
+        if (this.overflowed) {
+            return false;
+        }
+
+        boolean added = this.frames.offer(frame);
+
+        if (!added) {
+            switch (this.policy) {
+                case DROP_OLDEST:
+                    while (!(added = this.frames.offer(frame))) {
+                        if (this.frames.poll() != null) {
+                            this.dropped.increment();
+                        }
+                    }
+                    break;
+                case BLOCK:
+                    if (mayBlock) {
+                        try {
+                            added = this.frames.offer(frame, this.blockTimeoutMillis, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    break;
+                case DISCONNECT:
+                    break;
+            }
+
+            if (!added) {
+                this.overflowed = true;
+                this.dropped.increment();
+                this.frames.clear();
+                this.onOverflow.run();
+                return false;
+            }
+        }
+
+        this.highWaterMark.accumulateAndGet(this.frames.size(), Math::max);
+
+        if (this.draining.compareAndSet(false, true)) {
+            this.drainer.run();
+        }
+        return true;
+    }
+
+    // Takes the next frame to write, or null if the queue is empty
+    public byte[] poll() {
+        return this.frames.poll();
+    }
+
+    // Called by the writer task once poll() returned null. Returns true if frames arrived meanwhile and the
+    // same task must keep draining
+    public boolean finishDrain() {
+        this.draining.set(false);
+        return !this.frames.isEmpty() && this.draining.compareAndSet(false, true);
+    }
+
+    // Drops everything still queued, used once the client is closed
+    public void clear() {
+        this.overflowed = true;
+        this.frames.clear();
+    }
+
+    // Whether everything queued has been written and no writer task is running, or the queue was given up on
+    public boolean idle() {
+        return this.overflowed || (this.frames.isEmpty() && !this.draining.get());
+    }
+
+    // Metrics
+    public int depth() {
+        return this.frames.size();
+    }
+
+    public int highWaterMark() {
+        return this.highWaterMark.get();
+    }
+
+    public long dropped() {
+        return this.dropped.sum();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,94 @@
+package chatroom.server;
+
+import chatroom.protocol.BinaryProtocol;
+import chatroom.protocol.Compression;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+// Writer behind ClientConnection.out, each flush hands the written text to the client's OutboundQueue as one frame,
+// either as is or wrapped in a NOTICE frame for clients using the binary protocol.
+// During a batch (one command response), flushes are held back and the whole response becomes a single frame,
+// compressed if the client asked for it and it is long enough
+public class OutboundWriter extends Writer {
+    private static final int MAX_BATCH_CHARS = 32 * 1024; // A longer response is sent in several frames
+
+    private final OutboundQueue queue;
+    private final StringBuilder pending = new StringBuilder();
+    protected volatile boolean binary;
+    protected volatile boolean compress;
+    private Thread batchOwner; // Thread building the current batch, only ever compared with the current thread
+    private int batchDepth;
+
+    public OutboundWriter(OutboundQueue queue) {
+        this.queue = queue;
+    }
+
+    @Override
+    public void write(char[] buffer, int offset, int length) {
+        this.pending.append(buffer, offset, length);
+    }
+
+    // Starts holding back flushes until the matching endBatch, batches may nest
+    public void beginBatch() {
+        this.batchOwner = Thread.currentThread();
+        this.batchDepth++;
+    }
+
+    // Ends a batch, sending what it wrote once the outermost batch ends
+    public void endBatch() {
+        if (--this.batchDepth == 0) {
+            this.batchOwner = null;
+            this.sendPending();
+        }
+    }
+
+    // Whether the calling thread is building a batch, frames it sends directly must then come after the batched text
+    public boolean inBatch() {
+        return this.batchOwner == Thread.currentThread();
+    }
+
+    // Runs inside the PrintWriter's monitor, so it never waits for room (waiting there would pin a virtual thread)
+    @Override
+    public void flush() {
+        if (!this.inBatch() || this.pending.length() >= MAX_BATCH_CHARS) {
+            this.sendPending();
+        }
+    }
+
+    // Hands the written text to the queue as one frame, or a few NOTICE frames if it might not fit in one
+    public void sendPending() {
+        if (!this.pending.isEmpty()) {
+            if (this.binary) {
+                // The frame boundary replaces the final line break
+                int length = this.pending.length();
+                if (this.pending.charAt(length - 1) == '\n') {
+                    length--;
+                }
+
+                int start = 0;
+                do {
+                    int end = Math.min(length, start + BinaryProtocol.MAX_NOTICE_CHARS);
+                    if (end < length && Character.isHighSurrogate(this.pending.charAt(end - 1))) {
+                        end--; // Keeps surrogate pairs together
+                    }
+                    this.offer(BinaryProtocol.textFrame(BinaryProtocol.NOTICE, this.pending.substring(start, end)));
+                    start = end;
+                } while (start < length);
+            }
+            else {
+                this.offer(this.pending.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            this.pending.setLength(0);
+        }
+    }
+
+    private void offer(byte[] frame) {
+        byte[] compressed = (this.compress ? Compression.compressedFrame(frame, 0, frame.length) : null);
+        this.queue.offer(compressed != null ? compressed : frame, false);
+    }
+
+    @Override
+    public void close() {
+        this.sendPending();
+    }
+}
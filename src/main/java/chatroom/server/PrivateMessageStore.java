@@ -0,0 +1,84 @@
+package chatroom.server;
+
+import chatroom.objects.Message;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Private messages of a server, kept per conversation (pair of clients) apart from the public history.
+// A conversation is dropped once both of its participants have left, as ids are never reused
+public class PrivateMessageStore {
+    private final ConcurrentHashMap<String, Conversation> conversations = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> conversationsByClient = new ConcurrentHashMap<>();
+    private final int maxPerConversation;
+    private final AtomicLong idSource;
+
+    public PrivateMessageStore(ServerConfig config, AtomicLong idSource) {
+        this.maxPerConversation = config.historyMaxPrivateMessages;
+        this.idSource = idSource;
+    }
+
+    // Assigns the next id to the message and stores it in the conversation between its sender and receiver
+    public void append(Message msg, String receiverId) {
+        String key = key(msg.senderId, receiverId);
+
+        Conversation conversation = this.conversations.computeIfAbsent(key, k -> {
+            this.conversationsByClient.computeIfAbsent(msg.senderId, id -> ConcurrentHashMap.newKeySet()).add(k);
+            this.conversationsByClient.computeIfAbsent(receiverId, id -> ConcurrentHashMap.newKeySet()).add(k);
+            return new Conversation();
+        });
+
+        synchronized (conversation) {
+            msg.id = this.idSource.getAndIncrement();
+            conversation.messages.addLast(msg);
+
+            if (conversation.messages.size() > this.maxPerConversation) {
+                conversation.messages.removeFirst();
+            }
+        }
+    }
+
+    // Returns every stored private message sent or received by the client, in no particular order
+    public List<Message> of(String clientId) {
+        List<Message> result = new ArrayList<>();
+
+        for (String key : this.conversationsByClient.getOrDefault(clientId, Set.of())) {
+            Conversation conversation = this.conversations.get(key);
+            if (conversation != null) {
+                synchronized (conversation) {
+                    result.addAll(conversation.messages);
+                }
+            }
+        }
+        return result;
+    }
+
+    // Called when a client leaves, drops its conversations with clients that have already left
+    public void release(String clientId) {
+        Set<String> keys = this.conversationsByClient.remove(clientId);
+        if (keys == null) {
+            return;
+        }
+
+        for (String key : keys) {
+            Conversation conversation = this.conversations.get(key);
+            if (conversation != null && conversation.participantsLeft.incrementAndGet() == 2) {
+                this.conversations.remove(key);
+            }
+        }
+    }
+
+    // Same key for both directions of a conversation
+    private static String key(String firstId, String secondId) {
+        return (firstId.compareTo(secondId) < 0 ? firstId + "#" + secondId : secondId + "#" + firstId);
+    }
+
+    private static class Conversation {
+        private final ArrayDeque<Message> messages = new ArrayDeque<>();
+        private final AtomicInteger participantsLeft = new AtomicInteger();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,60 @@
+package chatroom.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Lock-free token bucket, kept as the single time at which the bucket will be full again (the generic cell rate
+// algorithm): taking a token pushes that time one interval further, and the bucket is empty once it is more than
+// burst intervals ahead of now. One compare-and-set per token, whichever thread takes it
+public class RateLimiter {
+    private final long intervalNanos; // Time to earn one token, 0 when unlimited
+    private final long burstNanos; // Time to earn a full bucket
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+    // perSecond <= 0 means no limit
+    public RateLimiter(int perSecond, int burst) {
+        this.intervalNanos = (perSecond > 0 ? 1_000_000_000L / perSecond : 0);
+        this.burstNanos = this.intervalNanos * Math.max(1, burst);
+    }
+
+    public boolean unlimited() {
+        return this.intervalNanos == 0;
+    }
+
+    // Takes a token if there is one, otherwise leaves the bucket as it is and returns false
+    public boolean tryAcquire() {
+        if (this.unlimited()) {
+            return true;
+        }
+
+        long now = System.nanoTime();
+        while (true) {
+            long fullAt = this.fullAt.get();
+            long next = (fullAt - now < 0 ? now : fullAt) + this.intervalNanos;
+
+            if (next - now > this.burstNanos) {
+                return false;
+            }
+            if (this.fullAt.compareAndSet(fullAt, next)) {
+                return true;
+            }
+        }
+    }
+
+    // Always takes a token, going into debt if there is none. Returns how long the caller should wait to pay the
+    // debt back, 0 if the token was available
+    public long acquire() {
+        if (this.unlimited()) {
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        while (true) {
+            long fullAt = this.fullAt.get();
+            long next = (fullAt - now < 0 ? now : fullAt) + this.intervalNanos;
+
+            if (this.fullAt.compareAndSet(fullAt, next)) {
+                return Math.max(0, next - now - this.burstNanos);
+            }
+        }
+    }
+}
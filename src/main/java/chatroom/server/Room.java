@@ -0,0 +1,106 @@
+package chatroom.server;
+
+import chatroom.objects.Message;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// A named chat room of a server: its members and its own public history (with its search index).
+// Broadcasts only visit the room's members, while private messages and the user directory stay server-wide
+public class Room {
+    public static final String DEFAULT = "lobby"; // Where clients are placed when they connect
+
+    protected final String name;
+    protected final ConnectionRegistry members = new ConnectionRegistry(); // Local clients only
+    protected final Roster roster = new Roster(); // Local and remote users, by name
+    protected final HistoryStore history;
+    private final ClusterNode cluster;
+    private final ServerMetrics metrics;
+    protected final RateLimiter messageLimiter; // Shared by all members, on top of each member's own limits
+    protected final RateLimiter commandLimiter;
+    private final ReentrantReadWriteLock membership = new ReentrantReadWriteLock(); // Orders joins against broadcasts, see addMember
+
+    public Room(String name, ServerConfig config, HistoryStore history, ClusterNode cluster, ServerMetrics metrics) {
+        this.name = name;
+        this.history = history;
+        this.cluster = cluster;
+        this.metrics = metrics;
+        this.messageLimiter = new RateLimiter(config.roomMessagesPerSecond, config.roomMessageBurst);
+        this.commandLimiter = new RateLimiter(config.roomCommandsPerSecond, config.roomCommandBurst);
+    }
+
+    // Adds a local client to the room's members and roster, and has it queue its replay of the history. Broadcasts
+    // hold the read side of membership from appending a message to queueing it, joins the write side, so every message
+    // is either in the replay or delivered live after it, never both nor before its header
+    protected void addMember(ClientConnection c, Runnable replay) {
+        this.membership.writeLock().lock();
+        try {
+            if (this.members.add(c)) {
+                this.roster.add(c.name, c.id);
+            }
+            replay.run();
+        } finally {
+            this.membership.writeLock().unlock();
+        }
+    }
+
+    // Removes a local client from the room, returns false if it was not a member (e.g. already removed)
+    protected boolean removeMember(ClientConnection c) {
+        if (!this.members.remove(c)) {
+            return false;
+        }
+
+        this.roster.remove(c.name, c.id);
+        return true;
+    }
+
+    // Broadcasts message from one client to the room's members. The line is encoded once and only queued,
+    // each client's own writer task delivers it, so a stalled client does not hold up the others
+    protected void broadcast(Message msg) {
+        long start = System.nanoTime();
+
+        this.membership.readLock().lock();
+        try {
+            // Add to the room history first, which gives the message its id
+            this.history.append(msg);
+            msg.receivers.ensureCapacity(this.members.size());
+
+            for (ClientConnection c : this.members) {
+                // Add the id of ClientConnection c to the message's receivers
+                if (c != msg.sender) {
+                    msg.receivers.add(c.numericId);
+                }
+
+                c.sendMessage(msg);
+            }
+        } finally {
+            this.membership.readLock().unlock();
+        }
+        this.metrics.recordBroadcast(System.nanoTime() - start);
+
+        // Messages of local clients also go to the room's members on the other nodes
+        if (msg.sender != null) {
+            this.cluster.relayChat(msg);
+        }
+    }
+
+    // Broadcasts server message to the room's members
+    protected void broadcastServerMessage(String msg) {
+        for (ClientConnection c : this.members) {
+            c.send(msg);
+        }
+    }
+
+    // Room names are case-insensitive and also name message log records, so they are kept short and plain
+    public static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > 32) {
+            return false;
+        }
+
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '-')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
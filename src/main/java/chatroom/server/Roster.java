@@ -0,0 +1,85 @@
+package chatroom.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The users of a room (local and on other nodes) sorted by name, kept up to date as they join, move and leave.
+// The first page is rendered once per change and shared by every /users-list and join greeting until the next
+// one, so a reconnect storm costs a bounded page per joining user instead of a line per user already there
+public class Roster {
+    public static final int PAGE_SIZE = 100; // Users listed at most, more are found by prefix
+
+    private final ConcurrentSkipListMap<String, String> users = new ConcurrentSkipListMap<>(); // Lowercase name#id to name#id
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong version = new AtomicLong(); // Bumped by every change
+    private volatile Page firstPage;
+
+    public void add(String name, String id) {
+        String user = name + "#" + id;
+        if (this.users.putIfAbsent(user.toLowerCase(), user) == null) {
+            this.size.incrementAndGet();
+            this.version.incrementAndGet();
+        }
+    }
+
+    public void remove(String name, String id) {
+        if (this.users.remove((name + "#" + id).toLowerCase()) != null) {
+            this.size.decrementAndGet();
+            this.version.incrementAndGet();
+        }
+    }
+
+    public int size() {
+        return this.size.get();
+    }
+
+    // Lines "- name#id" of the first PAGE_SIZE users, rendered again only if the roster changed since
+    public String firstPage() {
+        long version = this.version.get();
+        Page page = this.firstPage;
+
+        if (page == null || page.version != version) {
+            // A change racing with the rendering bumps the version again, so the next call renders anew
+            page = new Page(version, render(this.users, PAGE_SIZE));
+            this.firstPage = page;
+        }
+        return page.lines;
+    }
+
+    // Lines of the first PAGE_SIZE users whose name starts with the prefix (case-insensitive)
+    public String withPrefix(String prefix) {
+        String from = prefix.toLowerCase();
+        return render(this.users.subMap(from, from + Character.MAX_VALUE), PAGE_SIZE);
+    }
+
+    // Number of users whose name starts with the prefix
+    public int countWithPrefix(String prefix) {
+        String from = prefix.toLowerCase();
+        return this.users.subMap(from, from + Character.MAX_VALUE).size();
+    }
+
+    private static String render(Map<String, String> users, int limit) {
+        StringBuilder lines = new StringBuilder();
+        int count = 0;
+
+        for (String user : users.values()) {
+            if (count++ == limit) {
+                break;
+            }
+            lines.append("- ").append(user).append('\n');
+        }
+        return lines.toString();
+    }
+
+    private static class Page {
+        private final long version;
+        private final String lines;
+
+        private Page(long version, String lines) {
+            this.version = version;
+            this.lines = lines;
+        }
+    }
+}
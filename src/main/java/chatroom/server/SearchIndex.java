@@ -0,0 +1,212 @@
+package chatroom.server;
+
+import chatroom.objects.Message;
+import java.util.*;
+
+// Inverted index of the public history: lowercase token (of the content or sender name) to the ids of the
+// messages containing it. Only used under HistoryStore's lock (changes under its write lock), so it needs no
+// locking of its own and messages are always added in id order
+public class SearchIndex {
+    private final TreeMap<String, Postings> tokens = new TreeMap<>();
+
+    public void add(Message msg) {
+        this.addTokens(msg.content, msg.id);
+        this.addTokens(msg.senderName, msg.id);
+    }
+
+    // Ids (increasing, at least fromId) of the messages where every query token is the prefix of some token
+    public long[] search(String[] queryTokens, long fromId) {
+        long[] result = null;
+
+        for (String queryToken : queryTokens) {
+            long[] ids = this.idsWithPrefix(queryToken, fromId);
+            result = (result == null ? ids : intersect(result, ids));
+
+            if (result.length == 0) {
+                break;
+            }
+        }
+        return (result == null ? new long[0] : result);
+    }
+
+    // Drops the ids of messages evicted from the history, and tokens left without any
+    public void prune(long firstLiveId) {
+        Iterator<Postings> iterator = this.tokens.values().iterator();
+
+        while (iterator.hasNext()) {
+            Postings postings = iterator.next();
+            postings.removeBelow(firstLiveId);
+
+            if (postings.size == 0) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // Splits text into lowercase tokens of letters and digits, e.g. "Hello, world!" -> [hello, world]
+    public static String[] tokenize(String text) {
+        List<String> result = new ArrayList<>();
+        int start = -1;
+
+        for (int i = 0; i <= text.length(); i++) {
+            boolean partOfToken = (i < text.length() && Character.isLetterOrDigit(text.charAt(i)));
+
+            if (partOfToken && start < 0) {
+                start = i;
+            }
+            else if (!partOfToken && start >= 0) {
+                result.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return result.toArray(new String[0]);
+    }
+
+    // Whether every query token is the prefix of a token of the message, without allocating.
+    // Used where there is no index, e.g. private messages
+    public static boolean matches(Message msg, String[] queryTokens) {
+        for (String queryToken : queryTokens) {
+            if (!hasTokenWithPrefix(msg.content, queryToken) && !hasTokenWithPrefix(msg.senderName, queryToken)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasTokenWithPrefix(String text, String prefix) {
+        for (int i = 0; i + prefix.length() <= text.length(); i++) {
+            boolean tokenStart = (i == 0 || !Character.isLetterOrDigit(text.charAt(i - 1)));
+            if (tokenStart && text.regionMatches(true, i, prefix, 0, prefix.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addTokens(String text, long id) {
+        for (String token : tokenize(text)) {
+            this.tokens.computeIfAbsent(token, t -> new Postings()).add(id);
+        }
+    }
+
+    // Union of the postings of all tokens starting with the prefix, merged in a single pass into one array. The ids
+    // are read in place, the lists being kept as a heap ordered by their next id
+    private long[] idsWithPrefix(String prefix, long fromId) {
+        Collection<Postings> matching = this.tokens.subMap(prefix, prefix + Character.MAX_VALUE).values();
+        Postings[] lists = new Postings[matching.size()];
+        int[] positions = new int[lists.length]; // Next id to merge of each list
+        int count = 0;
+        int total = 0;
+
+        for (Postings postings : matching) {
+            int start = postings.indexOf(fromId);
+            if (start < postings.size) {
+                lists[count] = postings;
+                positions[count++] = start;
+                total += postings.size - start;
+            }
+        }
+
+        if (count == 1) {
+            return Arrays.copyOfRange(lists[0].ids, positions[0], lists[0].size);
+        }
+        for (int i = count / 2 - 1; i >= 0; i--) {
+            siftDown(lists, positions, count, i);
+        }
+
+        long[] result = new long[total];
+        int n = 0;
+
+        while (count > 0) {
+            long id = lists[0].ids[positions[0]++];
+            if (n == 0 || result[n - 1] != id) { // The same message under several tokens
+                result[n++] = id;
+            }
+
+            if (positions[0] == lists[0].size) {
+                count--;
+                lists[0] = lists[count];
+                positions[0] = positions[count];
+            }
+            siftDown(lists, positions, count, 0);
+        }
+        return (n == total ? result : Arrays.copyOf(result, n));
+    }
+
+    // Moves the list at index i of the heap down, below the lists with a smaller next id
+    private static void siftDown(Postings[] lists, int[] positions, int size, int i) {
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && nextId(lists, positions, child + 1) < nextId(lists, positions, child)) {
+                child++;
+            }
+            if (nextId(lists, positions, child) >= nextId(lists, positions, i)) {
+                return;
+            }
+
+            Postings list = lists[i];
+            int position = positions[i];
+            lists[i] = lists[child];
+            positions[i] = positions[child];
+            lists[child] = list;
+            positions[child] = position;
+            i = child;
+        }
+    }
+
+    private static long nextId(Postings[] lists, int[] positions, int i) {
+        return lists[i].ids[positions[i]];
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        long[] result = new long[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            }
+            else if (a[i] > b[j]) {
+                j++;
+            }
+            else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    // Increasing message ids of one token
+    private static class Postings {
+        private long[] ids = new long[4];
+        private int size;
+
+        private void add(long id) {
+            // A token repeated in the same message is only recorded once
+            if (this.size > 0 && this.ids[this.size - 1] == id) {
+                return;
+            }
+
+            if (this.size == this.ids.length) {
+                this.ids = Arrays.copyOf(this.ids, this.size * 2);
+            }
+            this.ids[this.size++] = id;
+        }
+
+        // Index of the first id not below the given one, size if there is none
+        private int indexOf(long fromId) {
+            int index = Arrays.binarySearch(this.ids, 0, this.size, fromId);
+            return (index < 0 ? -index - 1 : index);
+        }
+
+        private void removeBelow(long firstLiveId) {
+            int start = this.indexOf(firstLiveId);
+            if (start > 0) {
+                System.arraycopy(this.ids, start, this.ids, 0, this.size - start);
+                this.size -= start;
+            }
+        }
+    }
+}
\ No newline at end of file
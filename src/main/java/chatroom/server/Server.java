@@ -4,29 +4,53 @@ import chatroom.Main;
 import chatroom.objects.Message;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
-// The Server class representing each room's server
+// The Server class, hosting any number of named rooms on one port
 public class Server implements Runnable {
+    private static final long CLOSE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
     private ServerSocket serverSocket;
     private ExecutorService threadPool;
+    private NioServerEngine nioEngine;
+    private MessageLog messageLog;
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private final AtomicBoolean shutdownStarted = new AtomicBoolean();
+    private Thread shutdownHook; // Removed on shutdown, so a stopped server can be garbage collected
+    protected final ServerConfig config;
     protected int serverPort;
-    protected int globalId = 0;
-    protected ArrayList<ClientConnection> clientConnections;
-    protected ArrayList<Message> messages; // Stores public chat history in the server. Private ones not included
-    protected final String[] commands = {
-            "/current-server || Shows the current server port you are connected to.",
-            "/users-list || Shows all other connected users.",
-            "/msg name#id message || Sends a private message to user with given id.",
-            "/search keyword || Searches for all messages or users by specified keyword.",
-            "/print-receivers message || Prints all receiver of specified message.",
-    };
+    protected final AtomicInteger globalId = new AtomicInteger(); // Atomic so clients joining at the same moment get distinct ids
+    protected ConnectionRegistry clientConnections;
+    protected final Set<ClientConnection> openConnections = ConcurrentHashMap.newKeySet(); // Joined or not, until closed
+    protected volatile boolean closing; // Set once shutdown starts
+    protected UserDirectory directory; // Names by id, including users who left
+    protected final AtomicLong messageIds = new AtomicLong(); // Shared by public and private messages of all rooms
+    protected final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>(); // Created on first /join, by lowercase name
+    protected Room lobby; // Room.DEFAULT, where clients start
+    protected ClusterNode cluster; // Links to the other nodes, does nothing unless clustering is configured
+    protected PrivateMessageStore privateMessages;
+    protected ServerMetrics metrics;
+    protected final CommandRegistry commands = new CommandRegistry(); // More can be registered before run()
 
     public Server(int port) {
+        this(port, ServerConfig.fromSystemProperties());
+    }
+
+    public Server(int port, ServerConfig config) {
+        this.config = config;
+        ClientConnection.registerCommands(this.commands);
+        this.globalId.set(config.clusterNodeId * ClusterNode.NODE_ID_STRIDE); // Keeps user ids unique across a cluster
+
         try {
-            this.serverSocket = new ServerSocket(port);
-            this.serverPort = port;
+            this.serverSocket = (config.engine == ServerConfig.Engine.NIO ? openServerChannel(port).socket() : new ServerSocket(port));
+            this.serverPort = this.serverSocket.getLocalPort(); // The one picked by the system for port 0
         }
         catch (IOException e) {
             System.err.println("Failed to open server on port " + port + ". Possibly because the port is already in use.");
@@ -41,13 +65,52 @@ public class Server implements Runnable {
         }
 
         // Initialize important variables
-        this.clientConnections = new ArrayList<>();
-        this.messages = new ArrayList<>();
-        this.threadPool = Executors.newCachedThreadPool();
+        this.clientConnections = new ConnectionRegistry();
+        this.directory = new UserDirectory();
+        this.metrics = new ServerMetrics(this);
+        this.privateMessages = new PrivateMessageStore(this.config, this.messageIds);
+        this.cluster = new ClusterNode(this, this.config);
+
+        // Rebuild the chat history from the message log, if enabled
+        if (this.config.logDirectory != null) {
+            if (!this.openMessageLog()) {
+                this.shutdown();
+                return;
+            }
+        }
+        this.lobby = this.room(Room.DEFAULT);
 
-        // Listen for new clients
-        this.listenForClientConnection();
+        // Listen for new clients, either with the NIO event loops or a (virtual) thread per client
+        if (this.config.engine == ServerConfig.Engine.NIO) {
+            try {
+                this.nioEngine = new NioServerEngine(this, this.serverSocket.getChannel(), this.config.eventLoopThreads);
+                this.nioEngine.start();
+            } catch (IOException e) {
+                System.err.println("Failed to start the NIO engine on port " + this.serverPort + ".");
+                this.shutdown();
+                return;
+            }
+        }
+        else {
+            // Like Executors.newCachedThreadPool, with a configurable keep-alive
+            this.threadPool = (this.config.engine == ServerConfig.Engine.VIRTUAL ? Executors.newVirtualThreadPerTaskExecutor()
+                    : new ThreadPoolExecutor(0, Integer.MAX_VALUE, this.config.poolKeepAliveSeconds, TimeUnit.SECONDS, new SynchronousQueue<>()));
+            this.listenForClientConnection();
+        }
 
+        try {
+            this.cluster.start();
+        } catch (IOException e) {
+            System.err.println("Failed to listen for cluster peers on port " + this.config.clusterPort + ".");
+            this.shutdown();
+            return;
+        }
+
+        this.metrics.register(this.serverSocket.getLocalPort());
+
+        // Stopping the process (e.g. Ctrl+C) shuts down gracefully, the message log included
+        this.shutdownHook = new Thread(this::shutdown, "chatroom-shutdown-" + this.serverPort);
+        Runtime.getRuntime().addShutdownHook(this.shutdownHook);
         System.out.println("Server started on port " + this.serverPort + ". Waiting for connections...");
     }
 
@@ -56,6 +119,84 @@ public class Server implements Runnable {
         return (this.serverSocket != null);
     }
 
+    // Returns the room with the given (lowercase) name, creating it if needed
+    protected Room room(String name) {
+        return this.rooms.computeIfAbsent(name, n -> new Room(n, this.config, new HistoryStore(n, this.config, this.messageIds, this.messageLog), this.cluster, this.metrics));
+    }
+
+    // Opens the message log, restores the newest messages into the history of their rooms and starts logging new ones.
+    // Recovery reads back the newest messages of all rooms together, so restart time stays bounded by the history
+    // size however many rooms there are
+    private boolean openMessageLog() {
+        try {
+            long start = System.currentTimeMillis();
+            this.messageLog = new MessageLog(Path.of(this.config.logDirectory), this.config.logSegmentMegabytes * 1024L * 1024L);
+            List<Message> recovered = this.messageLog.recover(this.config.historyMaxMessages);
+
+            Map<String, List<Message>> recoveredByRoom = new HashMap<>();
+            for (Message msg : recovered) {
+                recoveredByRoom.computeIfAbsent(msg.room, room -> new ArrayList<>()).add(msg);
+            }
+            recoveredByRoom.forEach((room, messages) -> this.room(room).history.restore(messages));
+            this.messageLog.start(this.messageIds.get());
+
+            System.out.println("Restored " + recovered.size() + " message(s) in " + recoveredByRoom.size() + " room(s) from " + this.config.logDirectory + " in " + (System.currentTimeMillis() - start) + " ms.");
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to open the message log in " + this.config.logDirectory + ".");
+            return false;
+        }
+    }
+
+    // Opens a channel based server socket for the NIO engine
+    private static ServerSocketChannel openServerChannel(int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+
+        try {
+            channel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        return channel;
+    }
+
+    // Outbound queue metrics: lines currently queued to all clients, the deepest any queue got, and lines dropped
+    public int outboundQueueDepth() {
+        int depth = 0;
+        for (ClientConnection c : this.clientConnections) {
+            depth += c.outbound.depth();
+        }
+        return depth;
+    }
+
+    public int maxOutboundQueueDepth() {
+        int max = 0;
+        for (ClientConnection c : this.clientConnections) {
+            max = Math.max(max, c.outbound.highWaterMark());
+        }
+        return max;
+    }
+
+    public long droppedOutboundLines() {
+        long dropped = 0;
+        for (ClientConnection c : this.clientConnections) {
+            dropped += c.outbound.dropped();
+        }
+        return dropped;
+    }
+
+    // Blocks the calling thread until the server is shut down. Virtual threads do not keep the JVM alive,
+    // so the launching thread waits here instead
+    public void awaitShutdown() {
+        try {
+            this.closed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     // Listens for new client connection in a different thread
     private void listenForClientConnection() {
         this.threadPool.execute(() -> {
@@ -65,61 +206,128 @@ public class Server implements Runnable {
                     Socket client = this.serverSocket.accept();
                     this.threadPool.execute(new ClientConnection(client, this));
                 } catch (IOException e) {
-                    System.err.println("Failed to accept and initialize client connection.");
-                    this.shutdown();
+                    if (!this.serverSocket.isClosed()) {
+                        System.err.println("Failed to accept and initialize client connection.");
+                        this.shutdown();
+                    }
+                } catch (RejectedExecutionException e) {
+                    break; // Shutting down, the client socket is closed with the process
                 }
             }
         });
     }
 
-    // Broadcasts message from one client to all connected clients
-    protected void broadcastMessage(Message msg) {
-        for (ClientConnection c : this.clientConnections) {
-            // Add the ClientConnection c to the message's receivers list
-            if (c != msg.sender) {
-                msg.receivers.add(c);
-            }
-
-            // Add the message to each client's messages list and print it
-            c.messages.add(msg);
-            c.out.println(msg.sentTime + " " + msg.sender.name + "#" + msg.sender.id + ": " + msg.content);
-        }
-
-        // Add to the server messages list
-        this.messages.add(msg);
-    }
-
-    // Broadcasts server message to all connected clients
-    protected void broadcastServerMessage(String msg) {
-        for (ClientConnection c : this.clientConnections) {
-            c.out.println(msg);
-        }
+    // Runs a task on the server's thread pool (blocking engines only)
+    protected void execute(Runnable task) {
+        this.threadPool.execute(task);
     }
 
     // Sends private message to specified client
     protected void sendPrivateMessage(Message msg, ClientConnection c) {
-        // Add the target client to the message's receivers list
-        msg.receivers.add(c);
+        // Add the target client to the message's receivers
+        msg.receivers.add(c.numericId);
 
-        // Add the message to the sender and target client messages list
-        msg.sender.messages.add(msg);
-        c.messages.add(msg);
+        // Store the message in the conversation of the sender and target client
+        this.privateMessages.append(msg, c.id);
+        this.metrics.privateMessages.increment();
 
         // Print the message to both the sender and target client
-        msg.sender.out.println("[To " + c.name + "#" + c.id + "] " +  msg.sentTime + ": " + msg.content);
-        c.out.println("[From " + msg.sender.name + "#" + msg.sender.id + "] " + msg.sentTime + ": " + msg.content);
+        msg.sender.sendPrivate(msg, c.name, c.id);
+        c.sendPrivate(msg, c.name, c.id);
+    }
+
+    // Sends private message to a client connected to another node of the cluster
+    protected void sendRemotePrivateMessage(Message msg, ClusterNode.RemoteUser receiver) {
+        msg.receivers.add(receiver.id);
+        this.privateMessages.append(msg, receiver.userId());
+        this.metrics.privateMessages.increment();
+
+        msg.sender.sendPrivate(msg, receiver.name, receiver.userId());
+        this.cluster.relayPrivate(msg, receiver);
+    }
+
+    // Delivers a private message relayed by another node to its receiver here
+    protected void deliverRelayedPrivateMessage(Message msg, ClientConnection receiver) {
+        this.privateMessages.append(msg, receiver.id);
+        this.metrics.privateMessages.increment();
+        receiver.sendPrivate(msg, receiver.name, receiver.id);
     }
 
-    // Shutdowns (closes) the Server class instance
-    private void shutdown() {
+    // Shutdowns (closes) the Server class instance, gracefully: stops accepting, tells every client, gives their
+    // outbound queues up to shutdownGraceSeconds to drain, closes them and waits for their threads to end, then
+    // writes out the message log. Only the first call does anything
+    protected void shutdown() {
+        if (this.serverSocket == null || !this.shutdownStarted.compareAndSet(false, true)) {
+            return;
+        }
+
+        this.closing = true;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.config.shutdownGraceSeconds);
+        int port = this.serverSocket.getLocalPort();
+
         try {
-            if (this.serverSocket != null && !this.serverSocket.isClosed()) {
+            try {
                 this.serverSocket.close();
+            } catch (IOException e) {
+                System.err.println("An error occurred when attempting to close server on port " + port + ".");
+            }
 
-                System.out.println("Server on port " + this.serverSocket.getLocalPort() + " has been closed.");
+            // Drain then close the clients, readers seeing their socket closed end as if the clients had left
+            for (ClientConnection c : this.openConnections) {
+                c.send("The server is shutting down.");
             }
-        } catch (IOException e) {
-            System.err.println("An error occurred when attempting to close server on port " + this.serverSocket.getLocalPort() + ".");
+            for (ClientConnection c : this.openConnections) {
+                c.awaitDrained(deadline);
+            }
+            for (ClientConnection c : this.openConnections) {
+                c.closeForShutdown();
+            }
+
+            // Closing takes a moment even once the grace period is over
+            long closeDeadline = Math.max(deadline, System.nanoTime() + CLOSE_WAIT_NANOS);
+            while (!this.openConnections.isEmpty() && closeDeadline - System.nanoTime() > 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+
+            if (this.threadPool != null) {
+                this.threadPool.shutdown();
+                try {
+                    if (!this.threadPool.awaitTermination(Math.max(0, closeDeadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                        this.threadPool.shutdownNow();
+                    }
+                } catch (InterruptedException e) {
+                    this.threadPool.shutdownNow();
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (this.nioEngine != null) {
+                this.nioEngine.shutdown();
+            }
+
+            if (this.cluster != null) {
+                this.cluster.close();
+            }
+
+            if (this.messageLog != null) {
+                this.messageLog.close();
+            }
+
+            if (this.metrics != null) {
+                this.metrics.unregister();
+            }
+
+            if (this.shutdownHook != null) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+                } catch (IllegalStateException e) {
+                    // The JVM is exiting, this is likely the hook itself running
+                }
+            }
+
+            System.out.println("Server on port " + port + " has been closed.");
+        } finally {
+            this.closed.countDown();
         }
     }
 
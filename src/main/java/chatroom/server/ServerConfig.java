@@ -0,0 +1,140 @@
+package chatroom.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Startup options of the server, read from system properties (e.g. java -Dchatroom.engine=nio -cp out chatroom.Main)
+public class ServerConfig {
+    // How client sockets are served
+    public enum Engine {
+        BLOCKING, // One platform thread per connected client, blocking IO
+        VIRTUAL, // One virtual thread per connected client, blocking IO
+        NIO // A small fixed set of selector event loops, non-blocking IO
+    }
+
+    // What happens when a client's outbound queue is full
+    public enum SlowConsumerPolicy {
+        DROP_OLDEST, // Discard the oldest queued lines to make room
+        DISCONNECT, // Disconnect the client
+        BLOCK // Make the sender wait for room, disconnecting the client if it does not come in time
+    }
+
+    // What happens when a client sends faster than its rate limits allow
+    public enum RateLimitPolicy {
+        THROTTLE, // Stop reading from the client until it is within its limits again
+        DROP, // Discard what is over the limit, telling the client
+        DISCONNECT // Disconnect the client (over a room's limit, it is only dropped)
+    }
+
+    // Defaults, the engine being the original thread per client one
+    public Engine engine = Engine.BLOCKING;
+    public int eventLoopThreads = Runtime.getRuntime().availableProcessors();
+    public int poolKeepAliveSeconds = 60; // Idle time after which a thread of the blocking engine's pool ends
+    public int outboundCapacity = 1024; // Lines queued per client before the slow consumer policy applies
+    public SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+    public long blockTimeoutMillis = 1000;
+    public int historyMaxMessages = 10000;
+    public long historyMaxBytes = 16L * 1024 * 1024;
+    public int historyMaxAgeSeconds = 0; // 0 means messages never expire
+    public int historyMaxPrivateMessages = 1000; // Per conversation
+    public int historyOnJoin = 50; // Messages replayed to a joining client, older ones are paged with /history
+    public int searchMaxResults = 50;
+    public String logDirectory = null; // Directory of the durable message log, null keeps history in memory only
+    public int logSegmentMegabytes = 64;
+    public int clusterNodeId = 0; // Unique per node of a cluster
+    public int clusterPort = 0; // Port other nodes connect to, 0 runs the server on its own
+    public List<String> clusterPeers = List.of(); // host:port (cluster ports) of the other nodes
+    public RateLimitPolicy rateLimitPolicy = RateLimitPolicy.THROTTLE;
+    public int messagesPerSecond = 20; // Per client, public and private messages, 0 means no limit
+    public int messageBurst = 40;
+    public int commandsPerSecond = 10; // Per client, every command but /msg
+    public int commandBurst = 20;
+    public int roomMessagesPerSecond = 0; // Per room, shared by all its members
+    public int roomMessageBurst = 200;
+    public int roomCommandsPerSecond = 0;
+    public int roomCommandBurst = 100;
+    public int handshakeTimeoutSeconds = 30; // Time a new connection has to send its name, 0 means no limit
+    public int idleTimeoutSeconds = 0; // Clients sending nothing for longer are disconnected (see /ping), 0 means never
+    public int shutdownGraceSeconds = 5; // Time given to outbound queues to drain and clients to leave on shutdown
+    public boolean remoteStats = false; // Whether /stats also answers clients on other machines, local ones always get it
+
+    // Reads the configuration from system properties, falling back to the defaults
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+
+        config.engine = enumProperty("chatroom.engine", Engine.class, config.engine);
+        config.eventLoopThreads = Math.max(1, intProperty("chatroom.event-loops", config.eventLoopThreads));
+        config.poolKeepAliveSeconds = Math.max(1, intProperty("chatroom.pool.keep-alive-seconds", config.poolKeepAliveSeconds));
+        config.outboundCapacity = Math.max(1, intProperty("chatroom.outbound.capacity", config.outboundCapacity));
+        config.slowConsumerPolicy = enumProperty("chatroom.outbound.policy", SlowConsumerPolicy.class, config.slowConsumerPolicy);
+        config.blockTimeoutMillis = Math.max(0, intProperty("chatroom.outbound.block-timeout-ms", (int) config.blockTimeoutMillis));
+        config.historyMaxMessages = Math.max(1, intProperty("chatroom.history.max-messages", config.historyMaxMessages));
+        config.historyMaxBytes = Math.max(1, intProperty("chatroom.history.max-kb", (int) (config.historyMaxBytes / 1024))) * 1024L;
+        config.historyMaxAgeSeconds = Math.max(0, intProperty("chatroom.history.max-age-seconds", config.historyMaxAgeSeconds));
+        config.historyMaxPrivateMessages = Math.max(1, intProperty("chatroom.history.max-private-messages", config.historyMaxPrivateMessages));
+        config.historyOnJoin = Math.max(0, intProperty("chatroom.history.on-join", config.historyOnJoin));
+        config.searchMaxResults = Math.max(1, intProperty("chatroom.search.max-results", config.searchMaxResults));
+        config.logDirectory = System.getProperty("chatroom.log.dir", config.logDirectory);
+        config.logSegmentMegabytes = Math.max(1, intProperty("chatroom.log.segment-mb", config.logSegmentMegabytes));
+        config.clusterNodeId = Math.max(0, Math.min(2047, intProperty("chatroom.cluster.node-id", config.clusterNodeId)));
+        config.clusterPort = Math.max(0, intProperty("chatroom.cluster.port", config.clusterPort));
+        config.clusterPeers = listProperty("chatroom.cluster.peers");
+        config.rateLimitPolicy = enumProperty("chatroom.limit.policy", RateLimitPolicy.class, config.rateLimitPolicy);
+        config.messagesPerSecond = Math.max(0, intProperty("chatroom.limit.messages-per-second", config.messagesPerSecond));
+        config.messageBurst = Math.max(1, intProperty("chatroom.limit.message-burst", config.messageBurst));
+        config.commandsPerSecond = Math.max(0, intProperty("chatroom.limit.commands-per-second", config.commandsPerSecond));
+        config.commandBurst = Math.max(1, intProperty("chatroom.limit.command-burst", config.commandBurst));
+        config.roomMessagesPerSecond = Math.max(0, intProperty("chatroom.limit.room-messages-per-second", config.roomMessagesPerSecond));
+        config.roomMessageBurst = Math.max(1, intProperty("chatroom.limit.room-message-burst", config.roomMessageBurst));
+        config.roomCommandsPerSecond = Math.max(0, intProperty("chatroom.limit.room-commands-per-second", config.roomCommandsPerSecond));
+        config.roomCommandBurst = Math.max(1, intProperty("chatroom.limit.room-command-burst", config.roomCommandBurst));
+        config.handshakeTimeoutSeconds = Math.max(0, intProperty("chatroom.handshake-timeout-seconds", config.handshakeTimeoutSeconds));
+        config.idleTimeoutSeconds = Math.max(0, intProperty("chatroom.idle-timeout-seconds", config.idleTimeoutSeconds));
+        config.shutdownGraceSeconds = Math.max(0, intProperty("chatroom.shutdown-grace-seconds", config.shutdownGraceSeconds));
+        config.remoteStats = Boolean.parseBoolean(System.getProperty("chatroom.stats.remote", String.valueOf(config.remoteStats)));
+
+        return config;
+    }
+
+    // Reads an integer system property, falling back to the default if missing or invalid
+    static int intProperty(String key, int defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value \"" + value + "\" for " + key + ", using " + defaultValue + " instead.");
+            return defaultValue;
+        }
+    }
+
+    // Reads a comma separated system property, empty if missing
+    static List<String> listProperty(String key) {
+        List<String> values = new ArrayList<>();
+
+        for (String value : System.getProperty(key, "").split(",")) {
+            if (!value.isBlank()) {
+                values.add(value.trim());
+            }
+        }
+        return values;
+    }
+
+    // Reads an enum system property written in lowercase with dashes (e.g. drop-oldest), falling back to the default
+    static <E extends Enum<E>> E enumProperty(String key, Class<E> type, E defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Enum.valueOf(type, value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid value \"" + value + "\" for " + key + ", using " + defaultValue.name().toLowerCase().replace('_', '-') + " instead.");
+            return defaultValue;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,275 @@
+package chatroom.server;
+
+import chatroom.objects.LatencyHistogram;
+import com.sun.management.UnixOperatingSystemMXBean;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Counters and latency histograms of a server, shown by /stats and over JMX. Recording only touches LongAdders and
+// lock-free histograms, so it stays cheap on the broadcast and read paths. Gauges (queues, history) are computed
+// when read
+public class ServerMetrics implements ServerMetricsMXBean {
+    private final Server server;
+    private final long startedAt = System.nanoTime();
+    protected final LongAdder connectionsOpened = new LongAdder();
+    protected final LongAdder publicMessages = new LongAdder();
+    protected final LongAdder privateMessages = new LongAdder();
+    protected final LongAdder bytesIn = new LongAdder();
+    protected final LongAdder bytesOut = new LongAdder();
+    protected final LongAdder socketWrites = new LongAdder(); // Write calls made to send bytesOut
+    protected final LongAdder rateLimited = new LongAdder(); // Messages and commands over a rate limit
+    protected final LatencyHistogram fanout = new LatencyHistogram(); // Time to queue a public message to its room
+    protected final LatencyHistogram unknownCommands = new LatencyHistogram(); // Registered commands have their own
+    private ObjectName objectName;
+
+    // Last sample of the message rate
+    private long sampledAt = this.startedAt;
+    private long sampledMessages;
+    private double messagesPerSecond;
+
+    public ServerMetrics(Server server) {
+        this.server = server;
+    }
+
+    // Records how long a command took to handle, null for an unknown command
+    protected void recordCommand(CommandRegistry.Command command, long nanos) {
+        LatencyHistogram histogram = (command != null ? command.latency : this.unknownCommands);
+        histogram.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    // Records a public message queued to every member of its room
+    protected void recordBroadcast(long nanos) {
+        this.publicMessages.increment();
+        this.fanout.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    // Wraps a client's socket input so every byte read is counted
+    protected InputStream countingInput(InputStream input) {
+        return new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    ServerMetrics.this.bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    ServerMetrics.this.bytesIn.add(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    // Registers the metrics with the platform MBean server, under the actual port of the server
+    protected void register(int port) {
+        try {
+            this.objectName = new ObjectName("chatroom:type=Server,port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, this.objectName);
+        } catch (JMException e) {
+            System.err.println("Failed to register the server metrics with JMX.");
+            this.objectName = null;
+        }
+    }
+
+    protected void unregister() {
+        if (this.objectName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+        } catch (JMException e) {
+            System.err.println("Failed to unregister the server metrics from JMX.");
+        }
+        this.objectName = null;
+    }
+
+    // Plain text dump, as shown by /stats
+    public List<String> dump() {
+        List<String> lines = new ArrayList<>();
+
+        lines.add("Server statistics (port " + this.server.serverPort + ", up " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - this.startedAt) + "s):");
+        lines.add("- Users: " + this.getConnectedUsers() + " connected, " + this.getConnectionsOpened() + " connection(s) opened");
+        lines.add("- Resources: " + this.getOpenConnections() + " open connection(s), " + this.getThreads() + " thread(s), "
+                + this.getOpenFileDescriptors() + " open file descriptor(s)");
+        lines.add("- Messages: " + this.getPublicMessages() + " public, " + this.getPrivateMessages() + " private, "
+                + String.format("%.1f", this.getMessagesPerSecond()) + "/s");
+        lines.add("- Traffic: " + this.getBytesIn() + " bytes in, " + this.getBytesOut() + " bytes out in " + this.getSocketWrites() + " write(s)");
+        lines.add("- Broadcast fan-out: " + this.fanout.summary());
+        lines.add("- Outbound queues: " + this.getOutboundQueueDepth() + " line(s) queued, deepest " + this.getMaxOutboundQueueDepth()
+                + ", " + this.getDroppedOutboundLines() + " dropped");
+        lines.add("- History: " + this.getHistoryMessages() + " message(s), " + this.getHistoryBytes() + " bytes in " + this.getRooms() + " room(s)");
+        lines.add("- Rate limited: " + this.getRateLimited() + " message(s) and command(s)");
+        lines.add("- Commands: " + this.getCommands() + " handled");
+
+        for (CommandRegistry.Command command : this.server.commands.all()) {
+            if (command.latency.count() > 0) {
+                lines.add("  /" + command.name + ": " + command.latency.summary());
+            }
+        }
+        if (this.unknownCommands.count() > 0) {
+            lines.add("  (unknown): " + this.unknownCommands.summary());
+        }
+        return lines;
+    }
+
+    @Override
+    public int getConnectedUsers() {
+        return this.server.clientConnections.size();
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return this.connectionsOpened.sum();
+    }
+
+    // Connections not closed yet, including those still sending their name
+    @Override
+    public int getOpenConnections() {
+        return this.server.openConnections.size();
+    }
+
+    // Live platform threads of the process, virtual threads are not counted
+    @Override
+    public int getThreads() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    // Open file descriptors (sockets included) of the process, -1 where the JVM cannot tell
+    @Override
+    public long getOpenFileDescriptors() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof UnixOperatingSystemMXBean unix) {
+            return unix.getOpenFileDescriptorCount();
+        }
+        return -1;
+    }
+
+    @Override
+    public long getPublicMessages() {
+        return this.publicMessages.sum();
+    }
+
+    @Override
+    public long getPrivateMessages() {
+        return this.privateMessages.sum();
+    }
+
+    // Messages (public and private) per second since the previous sample, resampled at most once a second
+    @Override
+    public synchronized double getMessagesPerSecond() {
+        long now = System.nanoTime();
+
+        if (now - this.sampledAt >= TimeUnit.SECONDS.toNanos(1)) {
+            long messages = this.getPublicMessages() + this.getPrivateMessages();
+            this.messagesPerSecond = (messages - this.sampledMessages) * 1e9 / (now - this.sampledAt);
+            this.sampledMessages = messages;
+            this.sampledAt = now;
+        }
+        return this.messagesPerSecond;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return this.bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return this.bytesOut.sum();
+    }
+
+    @Override
+    public long getSocketWrites() {
+        return this.socketWrites.sum();
+    }
+
+    @Override
+    public long getFanoutMeanMicros() {
+        return Math.round(this.fanout.mean());
+    }
+
+    @Override
+    public long getFanoutP99Micros() {
+        return this.fanout.percentile(99);
+    }
+
+    @Override
+    public long getFanoutMaxMicros() {
+        return this.fanout.max();
+    }
+
+    @Override
+    public long getCommands() {
+        long commands = this.unknownCommands.count();
+        for (CommandRegistry.Command command : this.server.commands.all()) {
+            commands += command.latency.count();
+        }
+        return commands;
+    }
+
+    @Override
+    public long getRateLimited() {
+        return this.rateLimited.sum();
+    }
+
+    @Override
+    public Map<String, String> getCommandLatencies() {
+        Map<String, String> latencies = new TreeMap<>();
+        for (CommandRegistry.Command command : this.server.commands.all()) {
+            latencies.put(command.name, command.latency.summary());
+        }
+        latencies.put("unknown", this.unknownCommands.summary());
+        return latencies;
+    }
+
+    @Override
+    public int getOutboundQueueDepth() {
+        return this.server.outboundQueueDepth();
+    }
+
+    @Override
+    public int getMaxOutboundQueueDepth() {
+        return this.server.maxOutboundQueueDepth();
+    }
+
+    @Override
+    public long getDroppedOutboundLines() {
+        return this.server.droppedOutboundLines();
+    }
+
+    @Override
+    public int getRooms() {
+        return this.server.rooms.size();
+    }
+
+    @Override
+    public int getHistoryMessages() {
+        int messages = 0;
+        for (Room room : this.server.rooms.values()) {
+            messages += room.history.size();
+        }
+        return messages;
+    }
+
+    @Override
+    public long getHistoryBytes() {
+        long bytes = 0;
+        for (Room room : this.server.rooms.values()) {
+            bytes += room.history.bytes();
+        }
+        return bytes;
+    }
+}
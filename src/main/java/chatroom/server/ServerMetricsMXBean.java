@@ -0,0 +1,53 @@
+package chatroom.server;
+
+import java.util.Map;
+
+// Attributes of a running server shown over JMX (e.g. in jconsole) under chatroom:type=Server,port=<port>.
+// Latencies are in microseconds
+public interface ServerMetricsMXBean {
+    int getConnectedUsers();
+
+    long getConnectionsOpened();
+
+    int getOpenConnections();
+
+    int getThreads();
+
+    long getOpenFileDescriptors();
+
+    long getPublicMessages();
+
+    long getPrivateMessages();
+
+    double getMessagesPerSecond();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getSocketWrites();
+
+    long getFanoutMeanMicros();
+
+    long getFanoutP99Micros();
+
+    long getFanoutMaxMicros();
+
+    long getCommands();
+
+    Map<String, String> getCommandLatencies();
+
+    long getRateLimited();
+
+    int getOutboundQueueDepth();
+
+    int getMaxOutboundQueueDepth();
+
+    long getDroppedOutboundLines();
+
+    int getRooms();
+
+    int getHistoryMessages();
+
+    long getHistoryBytes();
+}
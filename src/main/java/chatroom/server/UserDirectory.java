@@ -0,0 +1,47 @@
+package chatroom.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Names of the users by numeric id, so stored messages can refer to users by id instead of holding on to their
+// ClientConnection. Names of users who left are remembered too, up to MAX_DEPARTED of the most recent ones
+public class UserDirectory {
+    private static final int MAX_DEPARTED = 100_000;
+
+    private final ConcurrentHashMap<Integer, String> connected = new ConcurrentHashMap<>();
+    private final Map<Integer, String> departed = new LinkedHashMap<>() { // Guarded by itself
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+            return this.size() > MAX_DEPARTED;
+        }
+    };
+
+    // Users of this server and, in a cluster, of the other nodes
+    public void joined(int id, String name) {
+        this.connected.put(id, name);
+    }
+
+    public void left(int id, String name) {
+        if (this.connected.remove(id) != null) {
+            synchronized (this.departed) {
+                this.departed.put(id, name);
+            }
+        }
+    }
+
+    // "name#id", marked when the user has left, or just the id if its name is no longer remembered
+    public String describe(int id) {
+        String userId = String.format("%05d", id);
+        String name = this.connected.get(id);
+
+        if (name != null) {
+            return name + "#" + userId;
+        }
+
+        synchronized (this.departed) {
+            name = this.departed.get(id);
+        }
+        return (name != null ? name + "#" + userId + " (left)" : "#" + userId + " (left)");
+    }
+}
@@ -0,0 +1,176 @@
+package chatroom.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+// Connects, joins and disconnects many times against each engine, then checks that the server's connections,
+// threads and file descriptors are back where they started, and that shutdown releases the server's own too.
+// Run fewer cycles with -Dchatroom.test.churn-cycles=N
+public class ConnectionChurnTest {
+    private static final int CYCLES = Integer.getInteger("chatroom.test.churn-cycles", 100_000);
+    private static final int WARM_UP_CYCLES = 500;
+    private static final int CONCURRENCY = 32;
+    private static final long SETTLE_MILLIS = 10_000; // Time given to asynchronous closes and idle pool threads
+    private static final String LAST_GREETING_LINE = "You can start chatting by typing a message and pressing enter";
+
+    private static PrintStream stdout;
+    private static ThreadPoolExecutor clients; // Started before the baselines are taken, so they are counted in both
+
+    @BeforeAll
+    public static void setUp() throws Exception {
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // Every connection is logged otherwise
+
+        clients = new ThreadPoolExecutor(CONCURRENCY, CONCURRENCY, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        clients.prestartAllCoreThreads();
+
+        // The JDK starts some threads and descriptors once per process and keeps them (the pollers of virtual
+        // threads, the name service connection resolving localhost), so they must exist before any baseline
+        for (ServerConfig.Engine engine : ServerConfig.Engine.values()) {
+            Server server = start(engine);
+            try {
+                churn(server.serverPort, WARM_UP_CYCLES);
+            } finally {
+                server.shutdown();
+            }
+        }
+    }
+
+    @AfterAll
+    public static void tearDown() {
+        clients.shutdownNow();
+        System.setOut(stdout);
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerConfig.Engine.class)
+    public void resourcesReturnToBaseline(ServerConfig.Engine engine) throws Exception {
+        long threadsBeforeStart = threads();
+        long descriptorsBeforeStart = openFileDescriptors();
+
+        Server server = start(engine);
+        try {
+            long threads = threads();
+            long descriptors = openFileDescriptors();
+
+            churn(server.serverPort, CYCLES);
+
+            awaitAtMost("open connections", 0, () -> server.metrics.getOpenConnections());
+            assertEquals(0, server.clientConnections.size(), "connected users");
+            assertEquals(0, server.metrics.getConnectedUsers(), "connected users");
+            awaitAtMost("threads", threads, ConnectionChurnTest::threads);
+            awaitAtMost("open file descriptors", descriptors, ConnectionChurnTest::openFileDescriptors);
+        } finally {
+            server.shutdown();
+        }
+
+        awaitAtMost("open connections", 0, () -> server.metrics.getOpenConnections());
+        awaitAtMost("threads", threadsBeforeStart, ConnectionChurnTest::threads);
+        awaitAtMost("open file descriptors", descriptorsBeforeStart, ConnectionChurnTest::openFileDescriptors);
+    }
+
+    // Nothing keeps a stopped server, its rooms and history reachable, e.g. a JVM shutdown hook
+    @ParameterizedTest
+    @EnumSource(ServerConfig.Engine.class)
+    public void stoppedServerIsCollected(ServerConfig.Engine engine) throws Exception {
+        Server server = start(engine);
+        churn(server.serverPort, 100);
+        server.shutdown();
+
+        WeakReference<Server> reference = new WeakReference<>(server);
+        server = null;
+        awaitAtMost("reachable stopped servers", 0, () -> {
+            System.gc();
+            return (reference.get() == null ? 0 : 1);
+        });
+    }
+
+    private static Server start(ServerConfig.Engine engine) {
+        ServerConfig config = new ServerConfig();
+        config.engine = engine;
+        config.eventLoopThreads = 2;
+        config.poolKeepAliveSeconds = 1; // So the blocking engine's idle threads end within the test
+        config.historyOnJoin = 0;
+
+        Server server = new Server(0, config);
+        server.run();
+        return server;
+    }
+
+    // Runs cycles connect, handshake and close cycles, CONCURRENCY at a time, all of which must succeed
+    private static void churn(int port, int cycles) throws Exception {
+        AtomicInteger next = new AtomicInteger();
+        List<Future<?>> workers = new ArrayList<>();
+
+        for (int i = 0; i < CONCURRENCY; i++) {
+            workers.add(clients.submit(() -> {
+                int cycle;
+                while ((cycle = next.getAndIncrement()) < cycles) {
+                    connectAndLeave(port, "churn" + cycle);
+                }
+                return null;
+            }));
+        }
+
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+    }
+
+    private static void connectAndLeave(int port, String name) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("localhost", port));
+            socket.setSoTimeout(10_000);
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            in.readLine(); // Name prompt
+            out.write(name + "\n");
+            out.flush();
+
+            String line;
+            while ((line = in.readLine()) != null && !line.equals(LAST_GREETING_LINE)) {
+                // Rest of the greeting
+            }
+            assertEquals(LAST_GREETING_LINE, line, "greeting of " + name);
+        }
+    }
+
+    // Waits until the value is at most the expected one, failing if it is still above after SETTLE_MILLIS
+    private static void awaitAtMost(String what, long expected, LongSupplier value) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETTLE_MILLIS);
+        long current;
+
+        while ((current = value.getAsLong()) > expected && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(current <= expected, what + ": " + current + ", expected at most " + expected);
+    }
+
+    // Live platform threads, without the carriers of virtual threads: those belong to the JDK's shared scheduler,
+    // which keeps them for a while after use whatever the server does
+    private static long threads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.isAlive() && !thread.getName().startsWith("ForkJoinPool-"))
+                .count();
+    }
+
+    private static long openFileDescriptors() {
+        return new ServerMetrics(null).getOpenFileDescriptors();
+    }
+}